@@ -1,4 +1,28 @@
+import java.text.Normalizer;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
 // -----------------------------
 // Enums (foundation)
@@ -14,30 +38,419 @@ public enum SeatCategory {
     PLATINUM;
 }
 
+public enum SeatStatus {
+    FREE,
+    HELD,
+    BOOKED;
+}
+
+public enum SeatHoldStatus {
+    HELD,
+    CONFIRMED,
+    CANCELLED,
+    EXPIRED;
+}
+
+public enum PaymentStatus {
+    PENDING,
+    SUCCEEDED,
+    FAILED,
+    TIMED_OUT,
+    REFUNDED,
+    REFUND_FAILED; // charged, but the refund did not go through; left for reconciliation
+}
+
 // -----------------------------
 // Low-level models (seats & screens)
 // -----------------------------
 public class Seat {
     int seatId;
     int row;
+    int column;
     SeatCategory seatCategory;
 
     public int getSeatId() { return seatId; }
     public void setSeatId(int seatId) { this.seatId = seatId; }
     public int getRow() { return row; }
     public void setRow(int row) { this.row = row; }
+    public int getColumn() { return column; }
+    public void setColumn(int column) { this.column = column; }
     public SeatCategory getSeatCategory() { return seatCategory; }
     public void setSeatCategory(SeatCategory seatCategory) { this.seatCategory = seatCategory; }
 }
 
+// Immutable seat layout (flyweight) shared by every screen with the same seating: row, column and
+// category of each seat live in primitive arrays indexed by seat ID, so shows keep only state bits.
+// Seats are also grouped into row sections (one category within one row) in column order.
+public class SeatLayout {
+    private static final SeatCategory[] CATEGORIES = SeatCategory.values();
+
+    private final int[] rows;
+    private final int[] columns;
+    private final byte[] categories;
+    private final int[][] rowSectionSeatIds;
+    private final int[] seatRowSection;
+    private final int[] seatSectionPosition;
+    private final Map<SeatCategory, int[]> categoryVsRowSections = new EnumMap<>(SeatCategory.class);
+
+    SeatLayout(int[] rows, int[] columns, SeatCategory[] seatCategories) {
+        int seatCount = rows.length;
+        if (columns.length != seatCount || seatCategories.length != seatCount) {
+            throw new IllegalArgumentException("rows, columns and categories must have one entry per seat");
+        }
+        this.rows = rows.clone();
+        this.columns = columns.clone();
+        this.categories = new byte[seatCount];
+        for (int seatId = 0; seatId < seatCount; seatId++) categories[seatId] = (byte) seatCategories[seatId].ordinal();
+
+        Integer[] order = new Integer[seatCount];
+        for (int seatId = 0; seatId < seatCount; seatId++) order[seatId] = seatId;
+        Arrays.sort(order, Comparator.<Integer>comparingInt(id -> categories[id])
+                .thenComparingInt(id -> this.rows[id])
+                .thenComparingInt(id -> this.columns[id]));
+
+        List<int[]> sections = new ArrayList<>();
+        Map<SeatCategory, List<Integer>> categorySections = new EnumMap<>(SeatCategory.class);
+        this.seatRowSection = new int[seatCount];
+        this.seatSectionPosition = new int[seatCount];
+        int start = 0;
+        while (start < seatCount) {
+            int first = order[start];
+            int end = start + 1;
+            while (end < seatCount && categories[order[end]] == categories[first] && this.rows[order[end]] == this.rows[first]) end++;
+            int[] sectionSeatIds = new int[end - start];
+            for (int i = start; i < end; i++) {
+                sectionSeatIds[i - start] = order[i];
+                seatRowSection[order[i]] = sections.size();
+                seatSectionPosition[order[i]] = i - start;
+            }
+            categorySections.computeIfAbsent(CATEGORIES[categories[first]], c -> new ArrayList<>()).add(sections.size());
+            sections.add(sectionSeatIds);
+            start = end;
+        }
+        this.rowSectionSeatIds = sections.toArray(new int[0][]);
+        for (Map.Entry<SeatCategory, List<Integer>> entry : categorySections.entrySet()) {
+            categoryVsRowSections.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
+    // layout from individual Seat objects (seat IDs must be 0..n-1)
+    static SeatLayout of(List<Seat> seats) {
+        int[] rows = new int[seats.size()];
+        int[] columns = new int[seats.size()];
+        SeatCategory[] seatCategories = new SeatCategory[seats.size()];
+        for (Seat seat : seats) {
+            rows[seat.getSeatId()] = seat.getRow();
+            columns[seat.getSeatId()] = seat.getColumn();
+            seatCategories[seat.getSeatId()] = seat.getSeatCategory();
+        }
+        return new SeatLayout(rows, columns, seatCategories);
+    }
+
+    public int getSeatCount() { return rows.length; }
+    public int getRow(int seatId) { return rows[seatId]; }
+    public int getColumn(int seatId) { return columns[seatId]; }
+    public SeatCategory getSeatCategory(int seatId) { return CATEGORIES[categories[seatId]]; }
+
+    int getRowSectionCount() { return rowSectionSeatIds.length; }
+    int[] getRowSectionSeatIds(int rowSection) { return rowSectionSeatIds[rowSection]; }
+    int getRowSection(int seatId) { return seatRowSection[seatId]; }
+    int getSectionPosition(int seatId) { return seatSectionPosition[seatId]; }
+    int[] getRowSections(SeatCategory category) { return categoryVsRowSections.get(category); }
+
+    // materializes a Seat view; only for callers that need the object form
+    public Seat getSeat(int seatId) {
+        Seat seat = new Seat();
+        seat.setSeatId(seatId);
+        seat.setRow(rows[seatId]);
+        seat.setColumn(columns[seatId]);
+        seat.setSeatCategory(getSeatCategory(seatId));
+        return seat;
+    }
+}
+
 public class Screen {
     int screenId;
-    List<Seat> seats = new ArrayList<>();
+    SeatLayout seatLayout = new SeatLayout(new int[0], new int[0], new SeatCategory[0]);
 
     public int getScreenId() { return screenId; }
     public void setScreenId(int screenId) { this.screenId = screenId; }
-    public List<Seat> getSeats() { return seats; }
-    public void setSeats(List<Seat> seats) { this.seats = seats; }
+    public SeatLayout getSeatLayout() { return seatLayout; }
+    public void setSeatLayout(SeatLayout seatLayout) { this.seatLayout = seatLayout; }
+
+    // Seat views built from the shared layout (allocates; prefer getSeatLayout on hot paths)
+    public List<Seat> getSeats() {
+        List<Seat> seats = new ArrayList<>(seatLayout.getSeatCount());
+        for (int seatId = 0; seatId < seatLayout.getSeatCount(); seatId++) seats.add(seatLayout.getSeat(seatId));
+        return seats;
+    }
+    public void setSeats(List<Seat> seats) { this.seatLayout = SeatLayout.of(seats); }
+}
+
+// Per-show seat state as an atomic bitmap: bit (seatId % 64) of word (seatId / 64) is set when the
+// seat is taken. Claims CAS a single word, so check-then-act can never double-book a seat.
+// A taken seat is HELD until its hold is confirmed, which also sets its bit in bookedWords.
+public class SeatInventory {
+    private final AtomicLongArray words;
+    private final AtomicLongArray bookedWords;
+    private final int capacity;
+    // set by every mutation, cleared by the seat map feed when it diffs the bitmaps
+    private volatile boolean changed;
+
+    SeatInventory(int capacity) {
+        this.capacity = capacity;
+        this.words = new AtomicLongArray((capacity + 63) >>> 6);
+        this.bookedWords = new AtomicLongArray((capacity + 63) >>> 6);
+    }
+
+    // returns true only for the single caller that flips the seat from free to taken
+    boolean tryClaim(int seatId) {
+        checkSeat(seatId);
+        if (!claimWord(seatId >>> 6, 1L << seatId)) return false;
+        markChanged();
+        return true;
+    }
+
+    // returns false if the seat was already free. A booked seat goes back to FREE as well: the booked
+    // bit is cleared before the taken bit, so a seat is never seen booked without being taken.
+    boolean release(int seatId) {
+        checkSeat(seatId);
+        int index = seatId >>> 6;
+        long mask = 1L << seatId;
+        while (true) {
+            long current = words.get(index);
+            if ((current & mask) == 0) return false;
+            if ((bookedWords.get(index) & mask) != 0) {
+                bookedWords.getAndAccumulate(index, mask, (booked, bit) -> booked & ~bit);
+            }
+            if (words.compareAndSet(index, current, current & ~mask)) {
+                markChanged();
+                return true;
+            }
+        }
+    }
+
+    // All-or-nothing claim of several seats. Words are claimed in ascending order with one CAS each,
+    // and on the first conflict every word already claimed by this call is rolled back.
+    boolean tryClaimAll(int[] seatIds) {
+        int[] sorted = sortedSeats(seatIds);
+        int start = 0;
+        while (start < sorted.length) {
+            int index = sorted[start] >>> 6;
+            int end = wordEnd(sorted, start);
+            long mask = wordMask(sorted, start, end);
+            if (!claimWord(index, mask)) {
+                releaseRange(sorted, 0, start);
+                return false;
+            }
+            start = end;
+        }
+        markChanged();
+        return true;
+    }
+
+    // moves already claimed seats from HELD to BOOKED
+    void markBooked(int[] seatIds) {
+        for (int seatId : seatIds) {
+            checkSeat(seatId);
+            long mask = 1L << seatId;
+            bookedWords.getAndAccumulate(seatId >>> 6, mask, (current, bit) -> current | bit);
+        }
+        markChanged();
+    }
+
+    boolean isTaken(int seatId) {
+        checkSeat(seatId);
+        return (words.get(seatId >>> 6) & (1L << seatId)) != 0;
+    }
+
+    SeatStatus getStatus(int seatId) {
+        if (!isTaken(seatId)) return SeatStatus.FREE;
+        return (bookedWords.get(seatId >>> 6) & (1L << seatId)) != 0 ? SeatStatus.BOOKED : SeatStatus.HELD;
+    }
+
+    int getCapacity() { return capacity; }
+
+    // true if seats changed since the last call; clear before copying so no change is missed
+    boolean takeChanged() {
+        if (!changed) return false;
+        changed = false;
+        return true;
+    }
+
+    // Booked bits are copied first: a seat is taken before it is booked and stays taken, so the
+    // copies never show a booked seat as free. Words are read one at a time, not as one atomic cut.
+    long[] copyBookedWords() { return copy(bookedWords); }
+    long[] copyTakenWords() { return copy(words); }
+
+    private static long[] copy(AtomicLongArray source) {
+        long[] copy = new long[source.length()];
+        for (int i = 0; i < copy.length; i++) copy[i] = source.get(i);
+        return copy;
+    }
+
+    // read first so a hot inventory does not rewrite the flag's cache line on every claim
+    private void markChanged() {
+        if (!changed) changed = true;
+    }
+
+    private boolean claimWord(int index, long mask) {
+        while (true) {
+            long current = words.get(index);
+            if ((current & mask) != 0) return false;
+            if (words.compareAndSet(index, current, current | mask)) return true;
+        }
+    }
+
+    // rollback only: these seats were claimed by the same call, so none of them can be booked
+    private void releaseRange(int[] sorted, int from, int to) {
+        int start = from;
+        while (start < to) {
+            int index = sorted[start] >>> 6;
+            int end = Math.min(wordEnd(sorted, start), to);
+            long mask = wordMask(sorted, start, end);
+            while (true) {
+                long current = words.get(index);
+                if (words.compareAndSet(index, current, current & ~mask)) break;
+            }
+            start = end;
+        }
+    }
+
+    // first position after 'start' whose seat lives in a different word
+    private static int wordEnd(int[] sorted, int start) {
+        int index = sorted[start] >>> 6;
+        int end = start + 1;
+        while (end < sorted.length && (sorted[end] >>> 6) == index) end++;
+        return end;
+    }
+
+    private static long wordMask(int[] sorted, int start, int end) {
+        long mask = 0;
+        for (int i = start; i < end; i++) mask |= 1L << sorted[i];
+        return mask;
+    }
+
+    private int[] sortedSeats(int[] seatIds) {
+        if (seatIds == null || seatIds.length == 0) throw new IllegalArgumentException("Seats required");
+        int[] sorted = seatIds.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            checkSeat(sorted[i]);
+            if (i > 0 && sorted[i] == sorted[i - 1]) throw new IllegalArgumentException("Duplicate seat: " + sorted[i]);
+        }
+        return sorted;
+    }
+
+    private void checkSeat(int seatId) {
+        if (seatId < 0 || seatId >= capacity) throw new IllegalArgumentException("Invalid seat: " + seatId);
+    }
+}
+
+// Segment tree over the seats of one row (in column order). Each node keeps the longest free run
+// starting at its left edge, ending at its right edge and anywhere inside it, so the leftmost run of
+// N free seats is found, and a seat flipped, in O(log seatsInRow). Callers synchronize on the tree.
+public class RowSeatTree {
+    private final int size;
+    private final int[] prefixFree;
+    private final int[] suffixFree;
+    private final int[] maxFree;
+
+    RowSeatTree(int seatsInRow) {
+        int size = 1;
+        while (size < seatsInRow) size <<= 1;
+        this.size = size;
+        this.prefixFree = new int[2 * size];
+        this.suffixFree = new int[2 * size];
+        this.maxFree = new int[2 * size];
+        for (int column = 0; column < seatsInRow; column++) setLeaf(size + column, true);
+        for (int node = size - 1; node >= 1; node--) pull(node, levelLength(node));
+    }
+
+    void setFree(int column, boolean free) {
+        int node = size + column;
+        setLeaf(node, free);
+        for (node >>= 1; node >= 1; node >>= 1) pull(node, levelLength(node));
+    }
+
+    // leftmost column starting a run of 'count' free seats, or -1
+    int findRun(int count) {
+        if (maxFree[1] < count) return -1;
+        int node = 1, low = 0, length = size;
+        while (length > 1) {
+            int half = length >> 1;
+            int left = 2 * node, right = left + 1;
+            if (maxFree[left] >= count) {
+                node = left;
+            } else if (suffixFree[left] + prefixFree[right] >= count) {
+                return low + half - suffixFree[left];
+            } else {
+                node = right;
+                low += half;
+            }
+            length = half;
+        }
+        return low;
+    }
+
+    private void setLeaf(int node, boolean free) {
+        int value = free ? 1 : 0;
+        prefixFree[node] = value;
+        suffixFree[node] = value;
+        maxFree[node] = value;
+    }
+
+    private void pull(int node, int length) {
+        int half = length >> 1;
+        int left = 2 * node, right = left + 1;
+        prefixFree[node] = prefixFree[left] == half ? half + prefixFree[right] : prefixFree[left];
+        suffixFree[node] = suffixFree[right] == half ? half + suffixFree[left] : suffixFree[right];
+        maxFree[node] = Math.max(Math.max(maxFree[left], maxFree[right]), suffixFree[left] + prefixFree[right]);
+    }
+
+    private int levelLength(int node) {
+        return size >> (31 - Integer.numberOfLeadingZeros(node));
+    }
+}
+
+// Best-available finder for one show: one RowSeatTree per row section of the shared SeatLayout,
+// rows preferred in ascending row order and seats leftmost first. The trees are a hint kept in sync
+// with the show's SeatInventory after every claim and release; the bitmap stays the source of truth.
+public class BestSeatAllocator {
+    private final SeatLayout seatLayout;
+    private final RowSeatTree[] trees;
+
+    BestSeatAllocator(SeatLayout seatLayout) {
+        this.seatLayout = seatLayout;
+        this.trees = new RowSeatTree[seatLayout.getRowSectionCount()];
+        for (int section = 0; section < trees.length; section++) {
+            trees[section] = new RowSeatTree(seatLayout.getRowSectionSeatIds(section).length);
+        }
+    }
+
+    // seat IDs of the best run of 'count' adjacent free seats in the category, or null
+    int[] findBest(SeatCategory category, int count) {
+        int[] sections = seatLayout.getRowSections(category);
+        if (sections == null || count <= 0) return null;
+        for (int section : sections) {
+            int start;
+            synchronized (trees[section]) {
+                start = trees[section].findRun(count);
+            }
+            if (start >= 0) return Arrays.copyOfRange(seatLayout.getRowSectionSeatIds(section), start, start + count);
+        }
+        return null;
+    }
+
+    // re-reads the seats' state from the inventory, so racing claims and releases settle correctly
+    void refresh(int[] seatIds, SeatInventory seatInventory) {
+        for (int seatId : seatIds) {
+            RowSeatTree tree = trees[seatLayout.getRowSection(seatId)];
+            synchronized (tree) {
+                tree.setFree(seatLayout.getSectionPosition(seatId), !seatInventory.isTaken(seatId));
+            }
+        }
+    }
 }
 
 // -----------------------------
@@ -62,18 +475,86 @@ public class Show {
     Movie movie;
     Screen screen;
     int showStartTime;
-    List<Integer> bookedSeatIds = new ArrayList<>();
+    SeatInventory seatInventory = new SeatInventory(0);
+    BestSeatAllocator bestSeatAllocator = new BestSeatAllocator(new Screen().getSeatLayout());
+    // free seats per category, one counter per cache line (slot = ordinal * COUNTER_STRIDE)
+    AtomicIntegerArray availableByCategory = new AtomicIntegerArray(SeatCategory.values().length * COUNTER_STRIDE);
+    final SeatMapFeed seatMapFeed = new SeatMapFeed(this);
+
+    static final int BEST_AVAILABLE_ATTEMPTS = 5;
+    static final int COUNTER_STRIDE = 16;
 
     public int getShowId() { return showId; }
     public void setShowId(int showId) { this.showId = showId; }
     public Movie getMovie() { return movie; }
     public void setMovie(Movie movie) { this.movie = movie; }
     public Screen getScreen() { return screen; }
-    public void setScreen(Screen screen) { this.screen = screen; }
+    public void setScreen(Screen screen) {
+        this.screen = screen;
+        this.seatInventory = new SeatInventory(screen.getSeatLayout().getSeatCount());
+        this.bestSeatAllocator = new BestSeatAllocator(screen.getSeatLayout());
+        this.availableByCategory = new AtomicIntegerArray(SeatCategory.values().length * COUNTER_STRIDE);
+        SeatLayout seatLayout = screen.getSeatLayout();
+        for (int seatId = 0; seatId < seatLayout.getSeatCount(); seatId++) {
+            availableByCategory.incrementAndGet(seatLayout.getSeatCategory(seatId).ordinal() * COUNTER_STRIDE);
+        }
+    }
     public int getShowStartTime() { return showStartTime; }
     public void setShowStartTime(int showStartTime) { this.showStartTime = showStartTime; }
-    public List<Integer> getBookedSeatIds() { return bookedSeatIds; }
-    public void setBookedSeatIds(List<Integer> bookedSeatIds) { this.bookedSeatIds = bookedSeatIds; }
+    public SeatInventory getSeatInventory() { return seatInventory; }
+    public SeatMapFeed getSeatMapFeed() { return seatMapFeed; }
+
+    // HOLD the seats while the customer pays; returns null if any of them is already taken
+    public SeatHold holdSeats(int[] seatIds) {
+        if (!seatInventory.tryClaimAll(seatIds)) return null;
+        bestSeatAllocator.refresh(seatIds, seatInventory);
+        adjustAvailable(seatIds, -1);
+        return new SeatHold(this, seatIds.clone());
+    }
+
+    // HOLD the best 'count' adjacent free seats of a category; null if no such run is left
+    public SeatHold holdBestAvailableSeats(SeatCategory category, int count) {
+        for (int attempt = 0; attempt < BEST_AVAILABLE_ATTEMPTS; attempt++) {
+            int[] seatIds = bestSeatAllocator.findBest(category, count);
+            if (seatIds == null) return null;
+            SeatHold hold = holdSeats(seatIds);
+            if (hold != null) return hold;
+            // lost the race for that run to another buyer, look again
+        }
+        return null;
+    }
+
+    public void releaseSeats(int[] seatIds) {
+        SeatLayout seatLayout = screen.getSeatLayout();
+        for (int seatId : seatIds) {
+            // count only seats this call actually freed, so the counters never drift
+            if (seatInventory.release(seatId)) {
+                availableByCategory.incrementAndGet(seatLayout.getSeatCategory(seatId).ordinal() * COUNTER_STRIDE);
+            }
+        }
+        bestSeatAllocator.refresh(seatIds, seatInventory);
+    }
+
+    // O(1) availability for listing pages; never touches seat-level state
+    public int getAvailableSeatCount(SeatCategory category) {
+        return availableByCategory.get(category.ordinal() * COUNTER_STRIDE);
+    }
+
+    private void adjustAvailable(int[] seatIds, int delta) {
+        SeatLayout seatLayout = screen.getSeatLayout();
+        for (int seatId : seatIds) {
+            availableByCategory.addAndGet(seatLayout.getSeatCategory(seatId).ordinal() * COUNTER_STRIDE, delta);
+        }
+    }
+
+    // read-only view of taken seats, derived from the inventory bitmap
+    public List<Integer> getBookedSeatIds() {
+        List<Integer> bookedSeatIds = new ArrayList<>();
+        for (int seatId = 0; seatId < seatInventory.getCapacity(); seatId++) {
+            if (seatInventory.isTaken(seatId)) bookedSeatIds.add(seatId);
+        }
+        return bookedSeatIds;
+    }
 }
 
 public class Theatre {
@@ -82,6 +563,7 @@ public class Theatre {
     City city;
     List<Screen> screen = new ArrayList<>();
     List<Show> shows = new ArrayList<>();
+    ShowIndex showIndex; // set once the theatre is registered with a TheatreController
 
     public int getTheatreId() { return theatreId; }
     public void setTheatreId(int theatreId) { this.theatreId = theatreId; }
@@ -90,7 +572,15 @@ public class Theatre {
     public List<Screen> getScreen() { return screen; }
     public void setScreen(List<Screen> screen) { this.screen = screen; }
     public List<Show> getShows() { return shows; }
-    public void setShows(List<Show> shows) { this.shows = shows; }
+    public void setShows(List<Show> shows) {
+        if (showIndex != null) showIndex.removeShows(this, this.shows);
+        this.shows = shows;
+        if (showIndex != null) showIndex.addShows(this, shows);
+    }
+    public void addShow(Show show) {
+        shows.add(show);
+        if (showIndex != null) showIndex.addShows(this, Collections.singletonList(show));
+    }
     public City getCity() { return city; }
     public void setCity(City city) { this.city = city; }
 }
@@ -100,95 +590,1101 @@ public class Theatre {
 // -----------------------------
 public class Payment {
     int paymentId;
+    final AtomicReference<PaymentStatus> status = new AtomicReference<>(PaymentStatus.PENDING);
     // Other payment details
+
+    Payment(int paymentId) {
+        this.paymentId = paymentId;
+    }
+
+    public int getPaymentId() { return paymentId; }
+    public PaymentStatus getStatus() { return status.get(); }
+
+    // the first outcome (success, failure or timeout) wins; later ones are ignored
+    boolean resolve(PaymentStatus outcome) { return status.compareAndSet(PaymentStatus.PENDING, outcome); }
 }
 
 public class Booking {
     Show show;
-    List<Seat> bookedSeats = new ArrayList<>();
+    int[] bookedSeatIds = new int[0];
     Payment payment;
 
     public Show getShow() { return show; }
     public void setShow(Show show) { this.show = show; }
-    public List<Seat> getBookedSeats() { return bookedSeats; }
-    public void setBookedSeats(List<Seat> bookedSeats) { this.bookedSeats = bookedSeats; }
+    public int[] getBookedSeatIds() { return bookedSeatIds; }
+    public void setBookedSeatIds(int[] bookedSeatIds) { this.bookedSeatIds = bookedSeatIds; }
+    // Seat views resolved against the show's shared layout
+    public List<Seat> getBookedSeats() {
+        List<Seat> bookedSeats = new ArrayList<>(bookedSeatIds.length);
+        for (int seatId : bookedSeatIds) bookedSeats.add(show.getScreen().getSeatLayout().getSeat(seatId));
+        return bookedSeats;
+    }
     public Payment getPayment() { return payment; }
     public void setPayment(Payment payment) { this.payment = payment; }
 }
 
+// -----------------------------
+// Seat holds (select -> hold -> pay -> confirm)
+// -----------------------------
+// Seats claimed for one customer while payment is in progress. Exactly one of confirm, cancel or
+// expire wins the HELD state; cancel and expire return the seats to the show's inventory through
+// the engine that created the hold.
+public class SeatHold {
+    final Show show;
+    final int[] seatIds;
+    final AtomicReference<SeatHoldStatus> status = new AtomicReference<>(SeatHoldStatus.HELD);
+    SeatBookingEngine engine = SharedStateBookingEngine.getInstance();
+
+    // the wheel this hold is scheduled on, told when the hold finishes early
+    volatile HoldTimingWheel timer;
+    // owned by the HoldTimingWheel worker thread
+    SeatHold prev;
+    SeatHold next;
+    int bucket = -1; // -1 while not linked into a bucket
+    long remainingRounds;
+    long deadlineNanos;
+
+    SeatHold(Show show, int[] seatIds) {
+        this.show = show;
+        this.seatIds = seatIds;
+    }
+
+    public Show getShow() { return show; }
+    public int[] getSeatIds() { return seatIds; }
+    public SeatHoldStatus getStatus() { return status.get(); }
+
+    boolean confirm() {
+        if (!status.compareAndSet(SeatHoldStatus.HELD, SeatHoldStatus.CONFIRMED)) return false;
+        unschedule();
+        engine.confirmSeats(show, seatIds);
+        return true;
+    }
+
+    boolean cancel() {
+        if (!releaseAs(SeatHoldStatus.CANCELLED)) return false;
+        unschedule();
+        return true;
+    }
+
+    boolean expire() { return releaseAs(SeatHoldStatus.EXPIRED); }
+
+    private boolean releaseAs(SeatHoldStatus finalStatus) {
+        if (!status.compareAndSet(SeatHoldStatus.HELD, finalStatus)) return false;
+        engine.releaseSeats(show, seatIds);
+        return true;
+    }
+
+    private void unschedule() {
+        HoldTimingWheel wheel = timer;
+        if (wheel != null) wheel.finished(this);
+    }
+}
+
+// Hashed timing wheel that expires seat holds. Adding is a lock-free enqueue, and so is telling the
+// wheel a hold was confirmed or cancelled: the worker unlinks finished holds from their bucket on
+// the next tick, so they are not retained for the rest of the TTL. Both are O(1); each tick only
+// visits the holds hashed into the current bucket, never the full set of shows.
+public class HoldTimingWheel {
+    private final SeatHold[] buckets;
+    private final int mask;
+    private final long tickNanos;
+    private final long startNanos;
+    private final ConcurrentLinkedQueue<SeatHold> pendingHolds = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<SeatHold> finishedHolds = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private long tick;
+
+    HoldTimingWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) throw new IllegalArgumentException("wheelSize must be a power of two");
+        this.buckets = new SeatHold[wheelSize];
+        this.mask = wheelSize - 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.startNanos = System.nanoTime();
+        worker = new Thread(this::run, "seat-hold-timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // stops the timer thread; holds still pending never expire
+    void shutdown() {
+        worker.interrupt();
+    }
+
+    void schedule(SeatHold hold, long ttl, TimeUnit unit) {
+        hold.deadlineNanos = System.nanoTime() + unit.toNanos(ttl);
+        hold.timer = this;
+        pendingHolds.add(hold);
+    }
+
+    // a scheduled hold was confirmed or cancelled before its deadline
+    void finished(SeatHold hold) {
+        finishedHolds.add(hold);
+    }
+
+    private void run() {
+        while (true) {
+            long tickDeadline = startNanos + (tick + 1) * tickNanos;
+            long sleepNanos = tickDeadline - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            transferPendingHolds();
+            removeFinishedHolds();
+            expireBucket((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    private void transferPendingHolds() {
+        SeatHold hold;
+        while ((hold = pendingHolds.poll()) != null) {
+            if (hold.getStatus() != SeatHoldStatus.HELD) continue;
+            long deadlineTick = Math.max(tick, (hold.deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+            hold.remainingRounds = (deadlineTick - tick) / buckets.length;
+            link(hold, (int) (deadlineTick & mask));
+        }
+    }
+
+    // A hold finishing before it was transferred is skipped by the transfer (no longer HELD), so
+    // only linked holds need unlinking here.
+    private void removeFinishedHolds() {
+        SeatHold hold;
+        while ((hold = finishedHolds.poll()) != null) {
+            if (hold.bucket >= 0) unlink(hold);
+        }
+    }
+
+    private void expireBucket(int index) {
+        SeatHold hold = buckets[index];
+        while (hold != null) {
+            SeatHold next = hold.next;
+            if (hold.getStatus() == SeatHoldStatus.HELD && hold.remainingRounds > 0) {
+                hold.remainingRounds--;
+            } else {
+                unlink(hold);
+                hold.expire();
+            }
+            hold = next;
+        }
+    }
+
+    private void link(SeatHold hold, int index) {
+        hold.bucket = index;
+        hold.prev = null;
+        hold.next = buckets[index];
+        if (hold.next != null) hold.next.prev = hold;
+        buckets[index] = hold;
+    }
+
+    private void unlink(SeatHold hold) {
+        if (hold.prev != null) hold.prev.next = hold.next;
+        else buckets[hold.bucket] = hold.next;
+        if (hold.next != null) hold.next.prev = hold.prev;
+        hold.prev = null;
+        hold.next = null;
+        hold.bucket = -1;
+    }
+}
+
+// -----------------------------
+// Booking engines (who mutates a show's seat state)
+// -----------------------------
+public interface SeatBookingEngine {
+    SeatHold holdSeats(Show show, int[] seatIds);
+    SeatHold holdBestAvailableSeats(Show show, SeatCategory category, int count);
+    void confirmSeats(Show show, int[] seatIds);
+    void releaseSeats(Show show, int[] seatIds);
+}
+
+// Default engine: every booking thread mutates the show directly through its CAS bitmap.
+public class SharedStateBookingEngine implements SeatBookingEngine {
+    private static final SharedStateBookingEngine INSTANCE = new SharedStateBookingEngine();
+    private SharedStateBookingEngine() {}
+    public static SharedStateBookingEngine getInstance() { return INSTANCE; }
+
+    public SeatHold holdSeats(Show show, int[] seatIds) { return show.holdSeats(seatIds); }
+    public SeatHold holdBestAvailableSeats(Show show, SeatCategory category, int count) {
+        return show.holdBestAvailableSeats(category, count);
+    }
+    public void confirmSeats(Show show, int[] seatIds) { show.getSeatInventory().markBooked(seatIds); }
+    public void releaseSeats(Show show, int[] seatIds) { show.releaseSeats(seatIds); }
+}
+
+// Single-writer engine: shows are hash-partitioned over a fixed number of owner threads, each
+// draining booking commands in batches from its own bounded ring buffer. Only the owner ever
+// touches a show's seat state, so its CAS claims never contend or retry. Holds and best-available
+// searches wait for the owner's answer; confirms and releases are fire-and-forget. Releases come
+// from the hold timer and payment timeouts, which must never wait on one hot show's full ring, so a
+// release that does not fit goes to the partition's overflow queue instead; the owner drains it
+// after every batch. It only grows while the ring is full and is bounded by the holds outstanding.
+public class PartitionedBookingEngine implements SeatBookingEngine {
+    static final int MAX_BATCH = 64;
+    private static final Runnable WAKE_UP = () -> {};
+
+    private final List<BlockingQueue<Runnable>> partitions = new ArrayList<>();
+    private final List<Queue<Runnable>> overflows = new ArrayList<>();
+    private final List<Thread> owners = new ArrayList<>();
+
+    PartitionedBookingEngine(int partitionCount, int ringCapacity) {
+        if (partitionCount <= 0) throw new IllegalArgumentException("partitionCount must be positive");
+        for (int i = 0; i < partitionCount; i++) {
+            BlockingQueue<Runnable> ring = new ArrayBlockingQueue<>(ringCapacity);
+            Queue<Runnable> overflow = new ConcurrentLinkedQueue<>();
+            partitions.add(ring);
+            overflows.add(overflow);
+            Thread owner = new Thread(() -> drain(ring, overflow), "show-partition-" + i);
+            owner.setDaemon(true);
+            owner.start();
+            owners.add(owner);
+        }
+    }
+
+    // stops the owner threads; commands still queued are dropped
+    void shutdown() {
+        for (Thread owner : owners) owner.interrupt();
+    }
+
+    public SeatHold holdSeats(Show show, int[] seatIds) {
+        return ownHold(show, () -> show.holdSeats(seatIds));
+    }
+
+    public SeatHold holdBestAvailableSeats(Show show, SeatCategory category, int count) {
+        return ownHold(show, () -> show.holdBestAvailableSeats(category, count));
+    }
+
+    public void confirmSeats(Show show, int[] seatIds) {
+        submit(show, () -> show.getSeatInventory().markBooked(seatIds));
+    }
+
+    // never blocks: a full ring means the owner is busy and reads the overflow after its batch; the
+    // wake-up covers an owner that emptied the ring and went back to waiting in between
+    public void releaseSeats(Show show, int[] seatIds) {
+        int partition = partitionOf(show);
+        Runnable release = () -> show.releaseSeats(seatIds);
+        BlockingQueue<Runnable> ring = partitions.get(partition);
+        if (ring.offer(release)) return;
+        overflows.get(partition).add(release);
+        ring.offer(WAKE_UP);
+    }
+
+    private SeatHold ownHold(Show show, Supplier<SeatHold> command) {
+        CompletableFuture<SeatHold> result = new CompletableFuture<>();
+        submit(show, () -> {
+            try {
+                SeatHold hold = command.get();
+                if (hold != null) hold.engine = this;
+                result.complete(hold);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            // rethrow as the shared-state engine would, e.g. IllegalArgumentException for a bad seat
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    private int partitionOf(Show show) {
+        return Math.floorMod(show.getShowId(), partitions.size());
+    }
+
+    private void submit(Show show, Runnable command) {
+        BlockingQueue<Runnable> ring = partitions.get(partitionOf(show));
+        try {
+            ring.put(command);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while submitting booking command", e);
+        }
+    }
+
+    private void drain(BlockingQueue<Runnable> ring, Queue<Runnable> overflow) {
+        List<Runnable> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                batch.add(ring.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            ring.drainTo(batch, MAX_BATCH - 1);
+            for (Runnable command : batch) run(command);
+            batch.clear();
+            Runnable release;
+            while ((release = overflow.poll()) != null) run(release);
+        }
+    }
+
+    private static void run(Runnable command) {
+        try {
+            command.run();
+        } catch (RuntimeException e) {
+            // a bad fire-and-forget command must not take the partition's owner down
+            System.err.println("booking command failed on " + Thread.currentThread().getName() + ": " + e);
+        }
+    }
+}
+
+// -----------------------------
+// Payments (async gateway stage)
+// -----------------------------
+// Blocking client of a payment provider; only ever called from the payment stage's virtual threads
+public interface PaymentGateway {
+    boolean charge(Payment payment); // true if approved
+    void refund(Payment payment);
+}
+
+// In-process stand-in for a real gateway: every call takes latencyMillis and a charge is declined
+// with probability failureRate
+public class SimulatedPaymentGateway implements PaymentGateway {
+    private final long latencyMillis;
+    private final double failureRate;
+
+    SimulatedPaymentGateway(long latencyMillis, double failureRate) {
+        this.latencyMillis = latencyMillis;
+        this.failureRate = failureRate;
+    }
+
+    public boolean charge(Payment payment) {
+        if (!simulateLatency()) return false;
+        return ThreadLocalRandom.current().nextDouble() >= failureRate;
+    }
+
+    public void refund(Payment payment) {
+        simulateLatency();
+    }
+
+    private boolean simulateLatency() {
+        try {
+            Thread.sleep(latencyMillis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
+
+// Booking threads hand over a seat hold and get a future straight back. The gateway call runs on
+// a virtual thread of its own, so a slow gateway parks cheap virtual threads rather than request
+// threads. An approved charge confirms the hold; a decline, an error or a timeout cancels it and
+// the seats go back to the show. A charge that completes after the timeout, or after the hold
+// expired, is refunded. The outcome future always completes, whatever the gateway throws, and a
+// payment's timeout task is cancelled (and dropped from the timer queue) once the payment resolves.
+public class PaymentProcessor {
+    private final PaymentGateway gateway;
+    private final long timeoutMillis;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, task -> {
+        Thread thread = new Thread(task, "payment-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger nextPaymentId = new AtomicInteger();
+
+    PaymentProcessor(PaymentGateway gateway, long timeout, TimeUnit unit) {
+        this.gateway = gateway;
+        this.timeoutMillis = unit.toMillis(timeout);
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    // completes once the payment's outcome is decided and the hold confirmed or released
+    CompletableFuture<Payment> pay(SeatHold hold) {
+        Payment payment = new Payment(nextPaymentId.incrementAndGet());
+        CompletableFuture<Payment> outcome = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = timeouts.schedule(() -> {
+            if (!payment.resolve(PaymentStatus.TIMED_OUT)) return;
+            try {
+                hold.cancel();
+            } finally {
+                outcome.complete(payment);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        outcome.whenComplete((result, failure) -> timeout.cancel(false));
+        executor.execute(() -> charge(hold, payment, outcome));
+        return outcome;
+    }
+
+    private void charge(SeatHold hold, Payment payment, CompletableFuture<Payment> outcome) {
+        try {
+            boolean approved;
+            try {
+                approved = gateway.charge(payment);
+            } catch (RuntimeException e) {
+                approved = false;
+            }
+            if (!approved) {
+                if (payment.resolve(PaymentStatus.FAILED)) hold.cancel();
+                return;
+            }
+            if (!payment.resolve(PaymentStatus.SUCCEEDED)) {
+                refund(payment); // timed out already; the seats were released then
+                return;
+            }
+            if (!hold.confirm()) {
+                refund(payment); // the hold expired while the charge was in flight
+            }
+        } catch (RuntimeException e) {
+            System.err.println("payment " + payment.getPaymentId() + " failed: " + e);
+        } finally {
+            outcome.complete(payment); // no-op when the timeout completed it first
+        }
+    }
+
+    private void refund(Payment payment) {
+        try {
+            gateway.refund(payment);
+            payment.status.set(PaymentStatus.REFUNDED);
+        } catch (RuntimeException e) {
+            payment.status.set(PaymentStatus.REFUND_FAILED);
+            System.err.println("refund of payment " + payment.getPaymentId() + " failed: " + e);
+        }
+    }
+
+    // payments already started run to completion; new ones are rejected
+    void shutdown() {
+        executor.shutdown();
+        timeouts.shutdown();
+    }
+}
+
+// -----------------------------
+// Admission control (flash-sale waiting room)
+// -----------------------------
+// FIFO virtual queue for one movie release. Joining hands out the next ticket number; a token
+// bucket admits tickets in number order at admitsPerSecond (up to 'burst' at once). The bucket is
+// refilled lazily by whoever polls, so there is no timer thread, and a full queue rejects new
+// arrivals at once instead of letting them pile up on the show's seat inventory.
+public class AdmissionQueue {
+    private final double admitsPerNano;
+    private final int burst;
+    private final int maxQueueLength;
+    private final AtomicLong issued = new AtomicLong(); // tickets handed out so far
+    private volatile long admittedThrough;               // tickets 1..admittedThrough may book
+    private double tokens;
+    private long lastRefillNanos;
+
+    AdmissionQueue(double admitsPerSecond, int burst, int maxQueueLength) {
+        if (admitsPerSecond <= 0 || burst <= 0 || maxQueueLength <= 0) {
+            throw new IllegalArgumentException("admission rate, burst and queue length must be positive");
+        }
+        this.admitsPerNano = admitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.maxQueueLength = maxQueueLength;
+        this.tokens = burst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    // the new ticket's number, or 0 when maxQueueLength tickets are already waiting
+    long enter() {
+        while (true) {
+            long current = issued.get();
+            // nobody waiting: bank the idle time now, capped at 'burst', so it is not credited in full
+            // to the tickets about to arrive
+            if (current == admittedThrough) refill();
+            if (current - admittedThrough >= maxQueueLength) {
+                refill();
+                if (current - admittedThrough >= maxQueueLength) return 0;
+            }
+            if (issued.compareAndSet(current, current + 1)) return current + 1;
+        }
+    }
+
+    boolean isAdmitted(long ticketNumber) {
+        if (ticketNumber <= admittedThrough) return true;
+        refill();
+        return ticketNumber <= admittedThrough;
+    }
+
+    // tickets still waiting ahead of this one; 0 once admitted
+    long positionOf(long ticketNumber) {
+        return isAdmitted(ticketNumber) ? 0 : ticketNumber - admittedThrough - 1;
+    }
+
+    // time until the bucket has admitted everyone up to this ticket, at the configured rate
+    long estimatedWaitMillis(long ticketNumber) {
+        if (isAdmitted(ticketNumber)) return 0;
+        double nanos = (ticketNumber - admittedThrough) / admitsPerNano;
+        return (long) Math.ceil(nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private synchronized void refill() {
+        long now = System.nanoTime();
+        double available = tokens + (now - lastRefillNanos) * admitsPerNano;
+        lastRefillNanos = now;
+        long admit = Math.min((long) available, issued.get() - admittedThrough);
+        if (admit > 0) admittedThrough += admit;
+        // tickets waiting since the last poll use the whole elapsed time; only what is left over is
+        // capped, so an idle queue can admit at most 'burst' at once
+        tokens = Math.min(burst, available - admit);
+    }
+}
+
+// A place in a release's waiting room. Tickets for movies without a waiting room are admitted
+// from the start. Each admitted ticket is good for one booking attempt.
+public class QueueTicket {
+    final AdmissionQueue queue;
+    final int movieId; // a ticket only books the movie whose queue issued it
+    final long number;
+    private final AtomicBoolean used = new AtomicBoolean();
+
+    QueueTicket(AdmissionQueue queue, int movieId, long number) {
+        this.queue = queue;
+        this.movieId = movieId;
+        this.number = number;
+    }
+
+    public long getNumber() { return number; }
+    public int getMovieId() { return movieId; }
+    public boolean isAdmitted() { return queue == null || queue.isAdmitted(number); }
+    public long getPosition() { return queue == null ? 0 : queue.positionOf(number); }
+    public long getEstimatedWaitMillis() { return queue == null ? 0 : queue.estimatedWaitMillis(number); }
+
+    boolean markUsed() { return used.compareAndSet(false, true); }
+}
+
+// Waiting rooms by movie, opened for releases expected to sell out (flash sales)
+public class WaitingRoom {
+    private final Map<Integer, AdmissionQueue> movieVsQueue = new ConcurrentHashMap<>();
+
+    void open(Movie movie, double admitsPerSecond, int burst, int maxQueueLength) {
+        movieVsQueue.put(movie.getMovieId(), new AdmissionQueue(admitsPerSecond, burst, maxQueueLength));
+    }
+
+    void close(Movie movie) {
+        movieVsQueue.remove(movie.getMovieId());
+    }
+
+    boolean isOpen(Movie movie) {
+        return movieVsQueue.containsKey(movie.getMovieId());
+    }
+
+    // null when the movie's waiting room is full
+    QueueTicket enter(Movie movie) {
+        AdmissionQueue queue = movieVsQueue.get(movie.getMovieId());
+        if (queue == null) return new QueueTicket(null, movie.getMovieId(), 0);
+        long number = queue.enter();
+        return number == 0 ? null : new QueueTicket(queue, movie.getMovieId(), number);
+    }
+}
+
+// -----------------------------
+// Idempotent requests (client retries)
+// -----------------------------
+// Remembers the result of each request key for 'window', so a client retry gets the original
+// result, or joins the attempt still in flight, instead of running the request again. Nothing is
+// locked: a key is claimed with putIfAbsent (or replace, over an expired entry) and then written to
+// the next slot of a fixed ring, claimed from an atomic cursor; the entry it overwrites, the oldest
+// key, leaves the map. Expired keys count as absent and are pushed out the same way. Memory is thus
+// bounded by the ring capacity at any request rate; size it to the peak number of requests per
+// window, or a late retry may find its key already pushed out.
+public class IdempotencyStore<V> {
+    private static class Entry<V> {
+        final String key;
+        final long createdNanos;
+        final CompletableFuture<V> result = new CompletableFuture<>();
+
+        Entry(String key, long createdNanos) {
+            this.key = key;
+            this.createdNanos = createdNanos;
+        }
+    }
+
+    private final Map<String, Entry<V>> keyVsEntry;
+    private final AtomicReferenceArray<Entry<V>> ring;
+    private final AtomicLong cursor = new AtomicLong(); // keys added so far; next slot is cursor % capacity
+    private final long windowNanos;
+
+    IdempotencyStore(int capacity, long window, TimeUnit unit) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.keyVsEntry = new ConcurrentHashMap<>(capacity);
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.windowNanos = unit.toNanos(window);
+    }
+
+    // runs the request only for the first use of the key within the window
+    CompletableFuture<V> execute(String key, Supplier<CompletableFuture<V>> request) {
+        long now = System.nanoTime();
+        Entry<V> entry = new Entry<>(key, now);
+        while (true) {
+            Entry<V> existing = keyVsEntry.putIfAbsent(key, entry);
+            if (existing == null) break;
+            if (!isExpired(existing, now)) return existing.result;
+            if (keyVsEntry.replace(key, existing, entry)) break;
+        }
+        int slot = (int) (cursor.getAndIncrement() % ring.length());
+        Entry<V> evicted = ring.getAndSet(slot, entry);
+        if (evicted != null) keyVsEntry.remove(evicted.key, evicted); // the key may already map to a newer entry
+        try {
+            request.get().whenComplete((value, failure) -> {
+                if (failure != null) entry.result.completeExceptionally(failure);
+                else entry.result.complete(value);
+            });
+        } catch (RuntimeException e) {
+            entry.result.completeExceptionally(e);
+        }
+        return entry.result;
+    }
+
+    // keys held, including expired ones the ring has not pushed out yet
+    int size() {
+        return keyVsEntry.size();
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return now - entry.createdNanos >= windowNanos;
+    }
+}
+
+// -----------------------------
+// Seat map streaming (live seat-selection screens)
+// -----------------------------
+// Full seat map of a show as two bitmaps (taken, booked); a taken seat that is not booked is HELD
+public class SeatMapSnapshot {
+    final int showId;
+    final long version;
+    final long[] takenWords;
+    final long[] bookedWords;
+
+    SeatMapSnapshot(int showId, long version, long[] takenWords, long[] bookedWords) {
+        this.showId = showId;
+        this.version = version;
+        this.takenWords = takenWords;
+        this.bookedWords = bookedWords;
+    }
+
+    public int getShowId() { return showId; }
+    public long getVersion() { return version; }
+
+    public SeatStatus getStatus(int seatId) {
+        long bit = 1L << seatId;
+        if ((takenWords[seatId >>> 6] & bit) == 0) return SeatStatus.FREE;
+        return (bookedWords[seatId >>> 6] & bit) != 0 ? SeatStatus.BOOKED : SeatStatus.HELD;
+    }
+}
+
+// Seats whose status changed between two versions of a show's seat map, with their new status.
+// A seat claimed and released again within one interval does not appear.
+public class SeatMapDelta {
+    final int showId;
+    final long version;
+    final int[] seatIds;
+    final SeatStatus[] statuses;
+
+    SeatMapDelta(int showId, long version, int[] seatIds, SeatStatus[] statuses) {
+        this.showId = showId;
+        this.version = version;
+        this.seatIds = seatIds;
+        this.statuses = statuses;
+    }
+
+    public int getShowId() { return showId; }
+    public long getVersion() { return version; } // previous version + 1; a gap means a lost delta
+    public int[] getSeatIds() { return seatIds; }
+    public SeatStatus[] getStatuses() { return statuses; }
+}
+
+// Called on the broadcaster thread: hand the data off (e.g. to a socket writer) and return quickly
+public interface SeatMapListener {
+    void onSnapshot(SeatMapSnapshot snapshot);
+    void onDelta(SeatMapDelta delta);
+}
+
+// Publishes one show's seat map to its viewers. Nothing happens on the booking path beyond the
+// inventory's changed flag: each publish diffs the live bitmaps against the last published
+// snapshot and sends every subscriber the same delta, so thousands of viewers cost one diff per
+// interval instead of one full seat map each. A new subscriber gets a snapshot taken in the same
+// step as the other subscribers' latest delta, so it continues from exactly that version.
+public class SeatMapFeed {
+    private final Show show;
+    private final List<SeatMapListener> listeners = new CopyOnWriteArrayList<>();
+    private SeatMapSnapshot published;
+    private SeatInventory publishedFrom; // Show.setScreen swaps the inventory
+
+    SeatMapFeed(Show show) {
+        this.show = show;
+    }
+
+    synchronized void subscribe(SeatMapListener listener) {
+        publish();
+        listeners.add(listener);
+        listener.onSnapshot(published);
+    }
+
+    void unsubscribe(SeatMapListener listener) {
+        listeners.remove(listener);
+    }
+
+    boolean hasSubscribers() {
+        return !listeners.isEmpty();
+    }
+
+    // latest published snapshot, for viewers that only need the current map once
+    synchronized SeatMapSnapshot snapshot() {
+        publish();
+        return published;
+    }
+
+    synchronized void publish() {
+        SeatInventory inventory = show.getSeatInventory();
+        if (inventory == publishedFrom && !inventory.takeChanged()) return;
+        publishedFrom = inventory;
+        long[] booked = inventory.copyBookedWords();
+        long[] taken = inventory.copyTakenWords();
+        SeatMapSnapshot previous = published;
+        SeatMapSnapshot current = new SeatMapSnapshot(show.getShowId(), previous == null ? 0 : previous.version + 1, taken, booked);
+        if (previous == null || previous.takenWords.length != taken.length || listeners.isEmpty()) {
+            published = current;
+            return;
+        }
+        SeatMapDelta delta = diff(previous, current);
+        if (delta.seatIds.length == 0) return; // changes cancelled out: keep the version, send nothing
+        published = current;
+        for (SeatMapListener listener : listeners) {
+            try {
+                listener.onDelta(delta);
+            } catch (RuntimeException e) {
+                // the delta is already published; a failing viewer must not cost the others theirs
+                System.err.println("seat map listener failed on show " + show.getShowId() + ": " + e);
+            }
+        }
+    }
+
+    private static SeatMapDelta diff(SeatMapSnapshot previous, SeatMapSnapshot current) {
+        int changedSeats = 0;
+        for (int i = 0; i < current.takenWords.length; i++) {
+            changedSeats += Long.bitCount(changedBits(previous, current, i));
+        }
+        int[] seatIds = new int[changedSeats];
+        SeatStatus[] statuses = new SeatStatus[changedSeats];
+        int next = 0;
+        for (int i = 0; i < current.takenWords.length; i++) {
+            long bits = changedBits(previous, current, i);
+            while (bits != 0) {
+                int seatId = (i << 6) + Long.numberOfTrailingZeros(bits);
+                seatIds[next] = seatId;
+                statuses[next++] = current.getStatus(seatId);
+                bits &= bits - 1;
+            }
+        }
+        return new SeatMapDelta(current.showId, current.version, seatIds, statuses);
+    }
+
+    private static long changedBits(SeatMapSnapshot previous, SeatMapSnapshot current, int word) {
+        return (previous.takenWords[word] ^ current.takenWords[word]) | (previous.bookedWords[word] ^ current.bookedWords[word]);
+    }
+}
+
+// Pushes seat map deltas of every watched show on one timer thread, batched every interval
+public class SeatMapBroadcaster {
+    private final Set<SeatMapFeed> watchedFeeds = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "seat-map-broadcaster");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    SeatMapBroadcaster(long interval, TimeUnit unit) {
+        ticker.scheduleAtFixedRate(this::publishAll, interval, interval, unit);
+    }
+
+    // the listener gets the current snapshot right away, then a delta whenever seats change
+    void subscribe(Show show, SeatMapListener listener) {
+        SeatMapFeed feed = show.getSeatMapFeed();
+        synchronized (feed) {
+            feed.subscribe(listener);
+            watchedFeeds.add(feed);
+        }
+    }
+
+    // the last viewer leaving drops the feed from the ticks; both steps hold the feed's lock, so a
+    // concurrent subscribe cannot be left on a feed that is no longer watched
+    void unsubscribe(Show show, SeatMapListener listener) {
+        SeatMapFeed feed = show.getSeatMapFeed();
+        synchronized (feed) {
+            feed.unsubscribe(listener);
+            if (!feed.hasSubscribers()) watchedFeeds.remove(feed);
+        }
+    }
+
+    void shutdown() {
+        ticker.shutdown();
+    }
+
+    private void publishAll() {
+        for (SeatMapFeed feed : watchedFeeds) {
+            try {
+                if (feed.hasSubscribers()) feed.publish();
+            } catch (RuntimeException e) {
+                // a failing listener must not stop the other shows' updates
+                System.err.println("seat map publish failed: " + e);
+            }
+        }
+    }
+}
+
 // -----------------------------
 // Controllers (movie & theatre management)
 // -----------------------------
+// Immutable, read-only view of the movie catalogue. Readers only ever see a fully built snapshot.
+// Titles are indexed by their normalized form (case and diacritics folded) for exact lookups, and
+// kept in a sorted array so type-ahead prefixes resolve with a binary search. Several movies may
+// share a normalized title (a remake, or titles differing only in accents); all of them are kept.
+public class MovieCatalogue {
+    // compiled once: normalize runs on every lookup and type-ahead keystroke
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}");
+    private static final Pattern WHITESPACE_RUNS = Pattern.compile("\\s+");
+
+    final Map<City, List<Movie>> cityVsMovies;
+    final List<Movie> allMovies;
+    final Map<String, List<Movie>> nameVsMovies;
+    final Map<City, Map<String, List<Movie>>> cityVsNameVsMovies;
+    final String[] sortedNames; // one entry per movie, so a title repeats for each movie sharing it
+    final Movie[] sortedMovies;
+
+    MovieCatalogue(Map<City, List<Movie>> cityVsMovies, List<Movie> allMovies) {
+        Map<City, List<Movie>> frozen = new EnumMap<>(City.class);
+        Map<City, Map<String, List<Movie>>> frozenNames = new EnumMap<>(City.class);
+        for (Map.Entry<City, List<Movie>> entry : cityVsMovies.entrySet()) {
+            frozen.put(entry.getKey(), List.copyOf(entry.getValue()));
+            frozenNames.put(entry.getKey(), Collections.unmodifiableMap(indexByName(entry.getValue())));
+        }
+        this.cityVsMovies = Collections.unmodifiableMap(frozen);
+        this.cityVsNameVsMovies = Collections.unmodifiableMap(frozenNames);
+        this.allMovies = List.copyOf(allMovies);
+
+        Map<String, List<Movie>> nameVsMovies = indexByName(allMovies);
+        this.nameVsMovies = Collections.unmodifiableMap(nameVsMovies);
+        String[] titles = nameVsMovies.keySet().toArray(new String[0]);
+        Arrays.sort(titles);
+        int movieCount = 0;
+        for (List<Movie> sameTitle : nameVsMovies.values()) movieCount += sameTitle.size();
+        this.sortedNames = new String[movieCount];
+        this.sortedMovies = new Movie[movieCount];
+        int next = 0;
+        for (String title : titles) {
+            for (Movie movie : nameVsMovies.get(title)) {
+                sortedNames[next] = title;
+                sortedMovies[next++] = movie;
+            }
+        }
+    }
+
+    // first 'limit' titles (in normalized alphabetical order) starting with the given prefix; none
+    // for a limit of zero or less
+    List<Movie> searchByPrefix(String prefix, int limit) {
+        if (limit <= 0) return Collections.emptyList();
+        String key = normalize(prefix);
+        int low = 0, high = sortedNames.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedNames[mid].compareTo(key) < 0) low = mid + 1; else high = mid;
+        }
+        List<Movie> result = new ArrayList<>(Math.min(limit, sortedNames.length - low));
+        for (int i = low; i < sortedNames.length && result.size() < limit && sortedNames[i].startsWith(key); i++) {
+            result.add(sortedMovies[i]);
+        }
+        return result;
+    }
+
+    // case- and diacritic-insensitive form of a title, e.g. " Avengers " -> "avengers"
+    static String normalize(String name) {
+        String decomposed = Normalizer.normalize(name.trim(), Normalizer.Form.NFD);
+        String folded = COMBINING_MARKS.matcher(decomposed).replaceAll("");
+        return WHITESPACE_RUNS.matcher(folded).replaceAll(" ").toLowerCase(Locale.ROOT);
+    }
+
+    // movies per normalized title, in the order they were added
+    private static Map<String, List<Movie>> indexByName(List<Movie> movies) {
+        Map<String, List<Movie>> index = new HashMap<>();
+        for (Movie movie : movies) {
+            List<Movie> sameTitle = index.computeIfAbsent(normalize(movie.getMovieName()), title -> new ArrayList<>());
+            // allMovies lists a movie once per city it was added to; index it once
+            if (!sameTitle.contains(movie)) sameTitle.add(movie);
+        }
+        index.replaceAll((title, sameTitle) -> List.copyOf(sameTitle));
+        return index;
+    }
+}
+
 public class MovieController {
+    // admin-side staging area; published to readers as a MovieCatalogue snapshot
     Map<City, List<Movie>> cityVsMovies;
     List<Movie> allMovies;
+    volatile MovieCatalogue catalogue;
 
     MovieController() {
         cityVsMovies = new HashMap<>();
         allMovies = new ArrayList<>();
+        catalogue = new MovieCatalogue(cityVsMovies, allMovies);
     }
 
-    // ADD movie to a particular city
-    void addMovie(Movie movie, City city) {
+    // ADD movie to a particular city (visible to readers after publish)
+    synchronized void addMovie(Movie movie, City city) {
         allMovies.add(movie);
         List<Movie> movies = cityVsMovies.getOrDefault(city, new ArrayList<>());
         movies.add(movie);
         cityVsMovies.put(city, movies);
     }
 
-    // GET movie by name
+    // builds a new snapshot from the staged changes and swaps it in atomically
+    synchronized void publish() {
+        catalogue = new MovieCatalogue(cityVsMovies, allMovies);
+    }
+
+    // GET movie by name (case- and diacritic-insensitive); the first one added if several share it
     Movie getMovieByName(String movieName) {
-        for (Movie movie : allMovies) {
-            if ((movie.getMovieName()).equals(movieName)) {
-                return movie;
-            }
-        }
-        return null;
+        List<Movie> movies = getMoviesByName(movieName);
+        return movies.isEmpty() ? null : movies.get(0);
+    }
+
+    // GET movie by name among the movies running in a city
+    Movie getMovieByName(String movieName, City city) {
+        List<Movie> movies = getMoviesByName(movieName, city);
+        return movies.isEmpty() ? null : movies.get(0);
+    }
+
+    // every movie with this title, e.g. an original and its remake
+    List<Movie> getMoviesByName(String movieName) {
+        return catalogue.nameVsMovies.getOrDefault(MovieCatalogue.normalize(movieName), Collections.emptyList());
+    }
+
+    List<Movie> getMoviesByName(String movieName, City city) {
+        Map<String, List<Movie>> nameVsMovies = catalogue.cityVsNameVsMovies.get(city);
+        if (nameVsMovies == null) return Collections.emptyList();
+        return nameVsMovies.getOrDefault(MovieCatalogue.normalize(movieName), Collections.emptyList());
+    }
+
+    // type-ahead search: up to 'limit' movies whose title starts with the prefix
+    List<Movie> searchMovies(String prefix, int limit) {
+        return catalogue.searchByPrefix(prefix, limit);
     }
 
     // GET movies by city
     List<Movie> getMoviesByCity(City city) {
-        return cityVsMovies.get(city);
+        return catalogue.cityVsMovies.get(city);
     }
 
     // TODO: REMOVE, UPDATE and CRUD by ID (left as comments as in original)
 }
 
+// Inverted index movieId -> city -> theatre -> shows, kept up to date as theatres and their shows
+// change, so looking up the shows of a movie in a city never scans the catalogue. This is the
+// admin-side copy; readers query the frozen copy held by the published TheatreCatalogue.
+public class ShowIndex {
+    private final Map<Integer, Map<City, Map<Theatre, List<Show>>>> movieVsCityShows = new HashMap<>();
+    private final Map<Theatre, City> theatreVsCity = new HashMap<>();
+
+    synchronized void addTheatre(Theatre theatre, City city) {
+        theatreVsCity.put(theatre, city);
+        theatre.showIndex = this;
+        addShows(theatre, theatre.getShows());
+    }
+
+    synchronized void addShows(Theatre theatre, List<Show> shows) {
+        City city = theatreVsCity.get(theatre);
+        for (Show show : shows) {
+            movieVsCityShows
+                    .computeIfAbsent(show.getMovie().getMovieId(), movieId -> new EnumMap<>(City.class))
+                    .computeIfAbsent(city, c -> new LinkedHashMap<>())
+                    .computeIfAbsent(theatre, t -> new ArrayList<>())
+                    .add(show);
+        }
+    }
+
+    synchronized void removeShows(Theatre theatre, List<Show> shows) {
+        City city = theatreVsCity.get(theatre);
+        for (Show show : shows) {
+            Map<City, Map<Theatre, List<Show>>> cityShows = movieVsCityShows.get(show.getMovie().getMovieId());
+            if (cityShows == null) continue;
+            Map<Theatre, List<Show>> theatreShows = cityShows.get(city);
+            if (theatreShows == null) continue;
+            List<Show> indexedShows = theatreShows.get(theatre);
+            if (indexedShows == null) continue;
+            indexedShows.remove(show);
+            if (indexedShows.isEmpty()) theatreShows.remove(theatre);
+            if (theatreShows.isEmpty()) cityShows.remove(city);
+            if (cityShows.isEmpty()) movieVsCityShows.remove(show.getMovie().getMovieId());
+        }
+    }
+
+    // deep immutable copy of the index for a catalogue snapshot
+    synchronized Map<Integer, Map<City, Map<Theatre, List<Show>>>> freeze() {
+        Map<Integer, Map<City, Map<Theatre, List<Show>>>> frozen = new HashMap<>();
+        for (Map.Entry<Integer, Map<City, Map<Theatre, List<Show>>>> movieEntry : movieVsCityShows.entrySet()) {
+            Map<City, Map<Theatre, List<Show>>> frozenCities = new EnumMap<>(City.class);
+            for (Map.Entry<City, Map<Theatre, List<Show>>> cityEntry : movieEntry.getValue().entrySet()) {
+                Map<Theatre, List<Show>> frozenTheatres = new LinkedHashMap<>();
+                for (Map.Entry<Theatre, List<Show>> theatreEntry : cityEntry.getValue().entrySet()) {
+                    frozenTheatres.put(theatreEntry.getKey(), List.copyOf(theatreEntry.getValue()));
+                }
+                frozenCities.put(cityEntry.getKey(), Collections.unmodifiableMap(frozenTheatres));
+            }
+            frozen.put(movieEntry.getKey(), Collections.unmodifiableMap(frozenCities));
+        }
+        return Collections.unmodifiableMap(frozen);
+    }
+}
+
+// Immutable, read-only view of theatres and their show index. Swapped as a whole on publish, so
+// search traffic never locks and never sees a half-applied admin change.
+public class TheatreCatalogue {
+    final Map<City, List<Theatre>> cityVsTheatre;
+    final Map<Integer, Map<City, Map<Theatre, List<Show>>>> movieVsCityShows;
+
+    TheatreCatalogue(Map<City, List<Theatre>> cityVsTheatre, ShowIndex showIndex) {
+        Map<City, List<Theatre>> frozen = new EnumMap<>(City.class);
+        for (Map.Entry<City, List<Theatre>> entry : cityVsTheatre.entrySet()) {
+            frozen.put(entry.getKey(), List.copyOf(entry.getValue()));
+        }
+        this.cityVsTheatre = Collections.unmodifiableMap(frozen);
+        this.movieVsCityShows = showIndex.freeze();
+    }
+
+    Map<Theatre, List<Show>> getShows(int movieId, City city) {
+        Map<City, Map<Theatre, List<Show>>> cityShows = movieVsCityShows.get(movieId);
+        if (cityShows == null) return Collections.emptyMap();
+        return cityShows.getOrDefault(city, Collections.emptyMap());
+    }
+}
+
 public class TheatreController {
+    // admin-side staging area; published to readers as a TheatreCatalogue snapshot
     Map<City, List<Theatre>> cityVsTheatre;
     List<Theatre> allTheatre;
+    ShowIndex showIndex;
+    volatile TheatreCatalogue catalogue;
 
     TheatreController() {
         cityVsTheatre = new HashMap<>();
         allTheatre = new ArrayList<>();
+        showIndex = new ShowIndex();
+        catalogue = new TheatreCatalogue(cityVsTheatre, showIndex);
     }
 
-    void addTheatre(Theatre theatre, City city) {
+    // visible to readers after publish, as are later Theatre.setShows/addShow changes
+    synchronized void addTheatre(Theatre theatre, City city) {
         allTheatre.add(theatre);
         List<Theatre> theatres = cityVsTheatre.getOrDefault(city, new ArrayList<>());
         theatres.add(theatre);
         cityVsTheatre.put(city, theatres);
+        showIndex.addTheatre(theatre, city);
+    }
+
+    // builds a new snapshot from the staged changes and swaps it in atomically
+    synchronized void publish() {
+        catalogue = new TheatreCatalogue(cityVsTheatre, showIndex);
     }
 
-    // Returns mapping of theatres->shows for a movie in a city
+    // Returns mapping of theatres->shows for a movie in a city (read-only, from the published snapshot)
     Map<Theatre, List<Show>> getAllShow(Movie movie, City city) {
-        Map<Theatre, List<Show>> theatreVsShows = new HashMap<>();
-        List<Theatre> theatres = cityVsTheatre.get(city);
-        if (theatres == null) return theatreVsShows;
-
-        for (Theatre theatre : theatres) {
-            List<Show> givenMovieShows = new ArrayList<>();
-            List<Show> shows = theatre.getShows();
-            for (Show show : shows) {
-                if (show.movie.getMovieId() == movie.getMovieId()) {
-                    givenMovieShows.add(show);
-                }
-            }
-            if (!givenMovieShows.isEmpty()) {
-                theatreVsShows.put(theatre, givenMovieShows);
-            }
-        }
-        return theatreVsShows;
+        return catalogue.getShows(movie.getMovieId(), city);
     }
 }
 
@@ -196,83 +1692,237 @@ public class TheatreController {
 // Application entry point (BookMyShow) - highest level
 // -----------------------------
 public class BookMyShow {
+    static final long SEAT_HOLD_TTL_MINUTES = 8;
+    // well inside the hold TTL, so a slow gateway releases the seats before the hold would expire
+    static final long PAYMENT_TIMEOUT_SECONDS = 30;
+    // client retries with the same key within this window get the original booking back
+    static final long IDEMPOTENCY_WINDOW_MINUTES = 10;
+    static final int IDEMPOTENCY_CAPACITY = 1 << 18;
+    // how often seat-selection screens get a batch of seat changes
+    static final long SEAT_MAP_PUSH_INTERVAL_MILLIS = 250;
+    // every demo screen has the same seating, so they all share one layout
+    static final SeatLayout STANDARD_SEAT_LAYOUT = createSeatLayout();
+
     MovieController movieController;
     TheatreController theatreController;
+    HoldTimingWheel seatHoldTimer;
+    SeatBookingEngine bookingEngine;
+    WaitingRoom waitingRoom;
+    PaymentProcessor paymentProcessor;
+    IdempotencyStore<Booking> bookingRequests;
+    SeatMapBroadcaster seatMapBroadcaster;
 
     BookMyShow() {
+        this(SharedStateBookingEngine.getInstance());
+    }
+
+    // e.g. new BookMyShow(new PartitionedBookingEngine(8, 1024)) for single-writer shows
+    BookMyShow(SeatBookingEngine bookingEngine) {
+        this(bookingEngine, new SimulatedPaymentGateway(50, 0.0));
+    }
+
+    BookMyShow(SeatBookingEngine bookingEngine, PaymentGateway paymentGateway) {
         movieController = new MovieController();
         theatreController = new TheatreController();
+        seatHoldTimer = new HoldTimingWheel(100, TimeUnit.MILLISECONDS, 512);
+        this.bookingEngine = bookingEngine;
+        waitingRoom = new WaitingRoom();
+        paymentProcessor = new PaymentProcessor(paymentGateway, PAYMENT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        bookingRequests = new IdempotencyStore<>(IDEMPOTENCY_CAPACITY, IDEMPOTENCY_WINDOW_MINUTES, TimeUnit.MINUTES);
+        seatMapBroadcaster = new SeatMapBroadcaster(SEAT_MAP_PUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Stops the threads this instance started (hold timer, payment stage, seat map broadcaster).
+    // A booking engine passed in is owned by the caller and keeps running.
+    void shutdown() {
+        seatHoldTimer.shutdown();
+        paymentProcessor.shutdown();
+        seatMapBroadcaster.shutdown();
     }
 
     public static void main(String args[]) {
         BookMyShow bookMyShow = new BookMyShow();
         bookMyShow.initialize();
 
+        // bookings complete asynchronously once paid; the demo waits on each to keep its output in order
         // user1
-        bookMyShow.createBooking(City.Bangalore, "BAAHUBALI");
-        // user2
-        bookMyShow.createBooking(City.Bangalore, "BAAHUBALI");
-    }
+        bookMyShow.createBooking(City.Bangalore, "BAAHUBALI", new int[]{30, 31}).join();
+        // user2 (overlaps on seat 31, so none of its seats are booked)
+        bookMyShow.createBooking(City.Bangalore, "BAAHUBALI", new int[]{31, 32}).join();
+        // user3 (best 4 adjacent GOLD seats)
+        bookMyShow.createBooking(City.Bangalore, "BAAHUBALI", SeatCategory.GOLD, 4).join();
+
+        // user4 (AVENGERS opens as a flash sale: queue first, book once admitted)
+        bookMyShow.waitingRoom.open(bookMyShow.movieController.getMovieByName("AVENGERS"), 50, 10, 10_000);
+        QueueTicket ticket = bookMyShow.enterWaitingRoom("AVENGERS");
+        if (ticket != null) bookMyShow.createBooking(ticket, City.Bangalore, "AVENGERS", new int[]{10, 11}).join();
 
-    private void createBooking(City userCity, String movieName) {
-        // 1. search movie by my location
-        List<Movie> movies = movieController.getMoviesByCity(userCity);
+        // user5 (the app times out and retries with the same idempotency key: no second booking)
+        Booking booking = bookMyShow.createBooking("req-user5-1", City.Bangalore, "BAAHUBALI", new int[]{50, 51}).join();
+        Booking retried = bookMyShow.createBooking("req-user5-1", City.Bangalore, "BAAHUBALI", new int[]{50, 51}).join();
+        System.out.println("retry returned the original booking: " + (booking == retried));
+
+        // a viewer opening the seat-selection screen late gets the whole map once, then deltas
+        bookMyShow.watchSeatMap(City.Bangalore, "BAAHUBALI");
+    }
 
-        // 2. select the movie which you want to see. i want to see Baahubali
-        Movie interestedMovie = null;
-        if (movies != null) {
-            for (Movie movie : movies) {
-                if ((movie.getMovieName()).equals(movieName)) {
-                    interestedMovie = movie;
+    private void watchSeatMap(City userCity, String movieName) {
+        Movie movie = findMovie(userCity, movieName);
+        Show show = movie == null ? null : selectShow(movie, userCity);
+        if (show == null) return;
+        seatMapBroadcaster.subscribe(show, new SeatMapListener() {
+            public void onSnapshot(SeatMapSnapshot snapshot) {
+                int booked = 0;
+                for (int seatId = 0; seatId < show.getSeatInventory().getCapacity(); seatId++) {
+                    if (snapshot.getStatus(seatId) == SeatStatus.BOOKED) booked++;
                 }
+                System.out.println("seat map of show " + snapshot.getShowId() + ": " + booked + " seats booked");
             }
+
+            public void onDelta(SeatMapDelta delta) {
+                System.out.println("seat map of show " + delta.getShowId() + ": " + delta.getSeatIds().length + " seats changed");
+            }
+        });
+    }
+
+    // a retry carrying an idempotency key seen within IDEMPOTENCY_WINDOW_MINUTES gets the first
+    // attempt's result (waiting for it if still in progress) and books nothing
+    private CompletableFuture<Booking> createBooking(String idempotencyKey, City userCity, String movieName, int[] seatIds) {
+        return bookingRequests.execute(idempotencyKey, () -> createBooking(userCity, movieName, seatIds));
+    }
+
+    // joins the movie's waiting room; null when the movie is unknown or the room is full
+    private QueueTicket enterWaitingRoom(String movieName) {
+        Movie movie = movieController.getMovieByName(movieName);
+        if (movie == null) {
+            System.out.println("Movie not found");
+            return null;
         }
+        QueueTicket ticket = waitingRoom.enter(movie);
+        if (ticket == null) System.out.println("too many people in the queue, try again later");
+        return ticket;
+    }
+
+    // Every booking passes here before any show is touched. A ticket only books the movie it was
+    // issued for; while a movie's waiting room is open it books only for an admitted, unused ticket,
+    // and a ticket that is not admitted yet stays in the queue.
+    private boolean admit(QueueTicket ticket, Movie movie) {
+        if (ticket != null && ticket.getMovieId() != movie.getMovieId()) {
+            System.out.println("queue ticket is for another movie");
+            return false;
+        }
+        if (ticket == null) {
+            if (!waitingRoom.isOpen(movie)) return true;
+            System.out.println("join the waiting room for " + movie.getMovieName() + " first");
+            return false;
+        }
+        if (!ticket.isAdmitted()) {
+            System.out.println("still in the queue at position " + ticket.getPosition()
+                    + ", about " + ticket.getEstimatedWaitMillis() + " ms to go");
+            return false;
+        }
+        if (!ticket.markUsed()) {
+            System.out.println("queue ticket already used, join the queue again");
+            return false;
+        }
+        return true;
+    }
+
+    // books all requested seats of the chosen show or none of them; completes with null on failure
+    private CompletableFuture<Booking> createBooking(City userCity, String movieName, int[] seatIds) {
+        return createBooking((QueueTicket) null, userCity, movieName, seatIds);
+    }
+
+    // as above, for a waiting-room ticket (null without one)
+    private CompletableFuture<Booking> createBooking(QueueTicket ticket, City userCity, String movieName, int[] seatIds) {
+        Movie movie = findMovie(userCity, movieName);
+        if (movie == null || !admit(ticket, movie)) return CompletableFuture.completedFuture(null);
+        Show interestedShow = selectShow(movie, userCity);
+        if (interestedShow == null) return CompletableFuture.completedFuture(null);
+
+        // 5. select the seats and HOLD them (all-or-nothing) while the user pays
+        SeatHold hold = bookingEngine.holdSeats(interestedShow, seatIds);
+        if (hold == null) {
+            System.out.println("seat already booked, try again");
+            return CompletableFuture.completedFuture(null);
+        }
+        return completeBooking(hold);
+    }
+
+    // books the best 'count' adjacent seats of a category in the chosen show; completes with null on failure
+    private CompletableFuture<Booking> createBooking(City userCity, String movieName, SeatCategory category, int count) {
+        Movie movie = findMovie(userCity, movieName);
+        if (movie == null || !admit(null, movie)) return CompletableFuture.completedFuture(null);
+        Show interestedShow = selectShow(movie, userCity);
+        if (interestedShow == null) return CompletableFuture.completedFuture(null);
+
+        // 5. let the show pick the best adjacent seats and HOLD them while the user pays
+        SeatHold hold = bookingEngine.holdBestAvailableSeats(interestedShow, category, count);
+        if (hold == null) {
+            System.out.println("no " + count + " adjacent " + category + " seats left, try again");
+            return CompletableFuture.completedFuture(null);
+        }
+        return completeBooking(hold);
+    }
+
+    private Movie findMovie(City userCity, String movieName) {
+        // 1. search movie by my location and 2. select the movie which you want to see (Baahubali)
+        Movie interestedMovie = movieController.getMovieByName(movieName, userCity);
 
         if (interestedMovie == null) {
             System.out.println("Movie not found in your city");
-            return;
         }
+        return interestedMovie;
+    }
 
+    private Show selectShow(Movie interestedMovie, City userCity) {
         // 3. get all show of this movie in userCity location
         Map<Theatre, List<Show>> showsTheatreWise = theatreController.getAllShow(interestedMovie, userCity);
         if (showsTheatreWise.isEmpty()) {
             System.out.println("No shows available for this movie in your city");
-            return;
+            return null;
         }
 
         // 4. select the particular show user is interested in (pick first theatre's first show as demo)
         Map.Entry<Theatre, List<Show>> entry = showsTheatreWise.entrySet().iterator().next();
         List<Show> runningShows = entry.getValue();
-        Show interestedShow = runningShows.get(0);
-
-        // 5. select the seat
-        int seatNumber = 30;
-        List<Integer> bookedSeats = interestedShow.getBookedSeatIds();
-        if (!bookedSeats.contains(seatNumber)) {
-            bookedSeats.add(seatNumber);
-            // startPayment (omitted real payment; create booking object)
-            Booking booking = new Booking();
-            List<Seat> myBookedSeats = new ArrayList<>();
-            for (Seat screenSeat : interestedShow.getScreen().getSeats()) {
-                if (screenSeat.getSeatId() == seatNumber) {
-                    myBookedSeats.add(screenSeat);
-                }
+        return runningShows.get(0);
+    }
+
+    private CompletableFuture<Booking> completeBooking(SeatHold hold) {
+        seatHoldTimer.schedule(hold, SEAT_HOLD_TTL_MINUTES, TimeUnit.MINUTES);
+
+        // 6. pay in the payment stage; this thread returns without waiting on the gateway, and the
+        //    hold is confirmed only if the payment went through before the hold expired
+        return paymentProcessor.pay(hold).thenApply(payment -> {
+            if (payment.getStatus() == PaymentStatus.REFUNDED) {
+                System.out.println("seat hold expired, payment refunded, try again");
+                return null;
             }
-            booking.setBookedSeats(myBookedSeats);
-            booking.setShow(interestedShow);
-            // payment handling should occur here (omitted)
+            if (payment.getStatus() == PaymentStatus.REFUND_FAILED) {
+                System.out.println("seat hold expired, refund pending, try again");
+                return null;
+            }
+            if (payment.getStatus() != PaymentStatus.SUCCEEDED) {
+                System.out.println("payment " + payment.getStatus() + ", seats released, try again");
+                return null;
+            }
+            Booking booking = new Booking();
+            booking.setBookedSeatIds(hold.getSeatIds());
+            booking.setShow(hold.getShow());
+            booking.setPayment(payment);
             System.out.println("BOOKING SUCCESSFUL");
-        } else {
-            System.out.println("seat already booked, try again");
-            return;
-        }
+            return booking;
+        });
     }
 
     private void initialize() {
         // create movies
         createMovies();
+        movieController.publish();
         // create theater with screens, seats and shows
         createTheatre();
+        theatreController.publish();
     }
 
     // creating 2 theatre
@@ -310,7 +1960,7 @@ public class BookMyShow {
         List<Screen> screens = new ArrayList<>();
         Screen screen1 = new Screen();
         screen1.setScreenId(1);
-        screen1.setSeats(createSeats());
+        screen1.setSeatLayout(STANDARD_SEAT_LAYOUT);
         screens.add(screen1);
         return screens;
     }
@@ -324,31 +1974,18 @@ public class BookMyShow {
         return show;
     }
 
-    // creating 100 seats
-    private List<Seat> createSeats() {
-        List<Seat> seats = new ArrayList<>();
-        // 1 to 40 : SILVER
-        for (int i = 0; i < 40; i++) {
-            Seat seat = new Seat();
-            seat.setSeatId(i);
-            seat.setSeatCategory(SeatCategory.SILVER);
-            seats.add(seat);
-        }
-        // 41 to 70 : GOLD
-        for (int i = 40; i < 70; i++) {
-            Seat seat = new Seat();
-            seat.setSeatId(i);
-            seat.setSeatCategory(SeatCategory.GOLD);
-            seats.add(seat);
-        }
-        // 71 to 99 : PLATINUM
-        for (int i = 70; i < 100; i++) {
-            Seat seat = new Seat();
-            seat.setSeatId(i);
-            seat.setSeatCategory(SeatCategory.PLATINUM);
-            seats.add(seat);
+    // creating 100 seats (10 rows of 10)
+    private static SeatLayout createSeatLayout() {
+        int[] rows = new int[100];
+        int[] columns = new int[100];
+        SeatCategory[] categories = new SeatCategory[100];
+        for (int i = 0; i < 100; i++) {
+            rows[i] = i / 10;
+            columns[i] = i % 10;
+            // 1 to 40 : SILVER, 41 to 70 : GOLD, 71 to 99 : PLATINUM
+            categories[i] = i < 40 ? SeatCategory.SILVER : i < 70 ? SeatCategory.GOLD : SeatCategory.PLATINUM;
         }
-        return seats;
+        return new SeatLayout(rows, columns, categories);
     }
 
     private void createMovies() {
@@ -373,3 +2010,5 @@ public class BookMyShow {
 }
 
 // How to handle Race Conditions?
+// Seat state lives in SeatInventory: claims are a single CAS on a 64-seat word, so two users racing
+// for the same seat can never both win.
@@ -11,7 +11,18 @@ Provide operations: createUser, createGroup, addExpense, settle payment between
 
 A SplitwiseService as the coordinator (Singleton). A SplitStrategyFactory chooses the strategy
 */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 /*
  Bottom-up reordered Splitwise LLD
@@ -23,72 +34,297 @@ import java.util.*;
 // ------------------------
 class User {
     String userId;
+    int userIndex; // dense id from UserIdInterner, the key counterparties use for this user
     String userName;
     UserExpenseBalanceSheet userExpenseBalanceSheet;
 
     public User(String id, String userName){
         this.userId = id;
+        this.userIndex = UserIdInterner.getInstance().intern(id);
         this.userName = userName;
         this.userExpenseBalanceSheet = new UserExpenseBalanceSheet();
     }
 
     public String getUserId() { return userId; }
+    public int getUserIndex() { return userIndex; }
     public String getUserName() { return userName; }
     public UserExpenseBalanceSheet getUserExpenseBalanceSheet() { return userExpenseBalanceSheet; }
 }
 
+// Money is carried end to end as a long count of minor units (paise/cents), so amounts add up
+// exactly and need no epsilon; these helpers convert and split totals deterministically.
+class Money {
+    static final long MINOR_UNITS_PER_MAJOR = 100;
+    static final long BASIS_POINTS_PER_WHOLE = 10_000; // percentages are given in basis points
+
+    static long ofMajor(long majorUnits) { return Math.multiplyExact(majorUnits, MINOR_UNITS_PER_MAJOR); }
+
+    static String format(long minorUnits) {
+        String sign = minorUnits < 0 ? "-" : "";
+        long abs = Math.abs(minorUnits);
+        return sign + (abs / MINOR_UNITS_PER_MAJOR) + "." + String.format("%02d", abs % MINOR_UNITS_PER_MAJOR);
+    }
+
+    // splits total in proportion to weights (largest remainder method); the shares sum to total
+    // exactly and leftover minor units go to the largest remainders, ties to the earliest weight.
+    // A negative total is split as its magnitude and negated, so it rounds the same way.
+    static long[] allocate(long total, long[] weights) {
+        if(total < 0) {
+            long[] shares = allocate(Math.negateExact(total), weights);
+            for(int i = 0; i < shares.length; i++) shares[i] = -shares[i];
+            return shares;
+        }
+        long weightSum = 0;
+        for(long weight : weights) weightSum += weight;
+        if(weightSum <= 0) throw new IllegalArgumentException("Weights must be positive");
+        long[] shares = new long[weights.length];
+        long[] remainders = new long[weights.length];
+        long allocated = 0;
+        for(int i = 0; i < weights.length; i++) {
+            long product = Math.multiplyExact(total, weights[i]);
+            shares[i] = product / weightSum;
+            remainders[i] = product % weightSum;
+            allocated += shares[i];
+        }
+        if(allocated == total) return shares;
+        if(weightSum <= Integer.MAX_VALUE) {
+            // sort (largest remainder, earliest index) as packed primitives: no boxing on the posting path
+            long[] order = new long[weights.length];
+            for(int i = 0; i < order.length; i++) order[i] = ((weightSum - 1 - remainders[i]) << 32) | i;
+            Arrays.sort(order);
+            for(int i = 0; allocated < total; i++, allocated++) shares[(int) order[i]]++;
+            return shares;
+        }
+        Integer[] order = new Integer[weights.length];
+        for(int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(remainders[b], remainders[a]));
+        for(int i = 0; allocated < total; i++, allocated++) shares[order[i]]++;
+        return shares;
+    }
+
+    // allocate with equal weights: every share is total / n and the first total % n get one more
+    // minor unit (one less for a negative total)
+    static long[] allocateEqually(long total, int n) {
+        if(n <= 0) throw new IllegalArgumentException("Weights must be positive");
+        long[] shares = new long[n];
+        long base = total / n;
+        long remainder = total % n;
+        for(int i = 0; i < n; i++) shares[i] = base + (i < Math.abs(remainder) ? Long.signum(remainder) : 0);
+        return shares;
+    }
+}
+
 class Balance {
-    double amountOwe;
-    double amountGetBack;
+    long amountOwe;
+    long amountGetBack;
+
+    public long getAmountOwe() { return amountOwe; }
+    public void setAmountOwe(long amountOwe) { this.amountOwe = amountOwe; }
+    public long getAmountGetBack() { return amountGetBack; }
+    public void setAmountGetBack(long amountGetBack) { this.amountGetBack = amountGetBack; }
+}
+
+// Maps user ids to dense ints (0, 1, 2, ...) so balance maps can key on a primitive instead of a
+// String. Indexes are never reused; lookups of known ids are lock free.
+class UserIdInterner {
+    private static final UserIdInterner INSTANCE = new UserIdInterner();
+    private final ConcurrentHashMap<String, Integer> idVsIndex = new ConcurrentHashMap<>();
+    private volatile String[] indexVsId = new String[64];
+    private int nextIndex;
+
+    private UserIdInterner() {}
+    public static UserIdInterner getInstance(){ return INSTANCE; }
 
-    public double getAmountOwe() { return amountOwe; }
-    public void setAmountOwe(double amountOwe) { this.amountOwe = amountOwe; }
-    public double getAmountGetBack() { return amountGetBack; }
-    public void setAmountGetBack(double amountGetBack) { this.amountGetBack = amountGetBack; }
+    public int intern(String userId){
+        Integer index = idVsIndex.get(userId);
+        return index != null ? index : internSlow(userId);
+    }
+
+    private synchronized int internSlow(String userId){
+        Integer index = idVsIndex.get(userId);
+        if(index != null) return index;
+        String[] ids = indexVsId;
+        if(nextIndex == ids.length) ids = Arrays.copyOf(ids, ids.length * 2);
+        ids[nextIndex] = userId;
+        indexVsId = ids; // publish the id before the index can be handed out
+        idVsIndex.put(userId, nextIndex);
+        return nextIndex++;
+    }
+
+    public String idOf(int index){ return indexVsId[index]; }
+}
+
+// Open-addressing map from a user index to an (owe, getBack) pair held in parallel primitive
+// arrays: no key boxing, no entry nodes, no Balance objects. Linear probing; removal shifts later
+// entries back so no tombstones build up. Not thread safe; callers hold the owning user's stripe.
+class BalanceMap {
+    private static final int EMPTY = 0; // keys are stored +1 so a zeroed slot means empty
+    private int[] keys;
+    private long[] owe;
+    private long[] getBack;
+    private int size;
+
+    public BalanceMap(){ allocate(8); }
+
+    interface BalanceVisitor {
+        void visit(int userIndex, long amountOwe, long amountGetBack);
+    }
+
+    public int size() { return size; }
+    public boolean contains(int userIndex) { return keys[slotOf(userIndex)] != EMPTY; }
+
+    public long getOwe(int userIndex){
+        int slot = slotOf(userIndex);
+        return keys[slot] == EMPTY ? 0 : owe[slot];
+    }
+
+    public long getGetBack(int userIndex){
+        int slot = slotOf(userIndex);
+        return keys[slot] == EMPTY ? 0 : getBack[slot];
+    }
+
+    // adds the deltas to the entry, creating it if absent
+    public void add(int userIndex, long oweDelta, long getBackDelta){
+        int slot = slotOf(userIndex);
+        if(keys[slot] == EMPTY) {
+            if((size + 1) * 4 > keys.length * 3) {
+                allocate(keys.length * 2);
+                slot = slotOf(userIndex);
+            }
+            keys[slot] = userIndex + 1;
+            size++;
+        }
+        owe[slot] += oweDelta;
+        getBack[slot] += getBackDelta;
+    }
+
+    // drops the entry once both sides are back to zero
+    public void removeIfCleared(int userIndex){
+        int slot = slotOf(userIndex);
+        if(keys[slot] == EMPTY || owe[slot] != 0 || getBack[slot] != 0) return;
+        int mask = keys.length - 1;
+        int hole = slot;
+        for(int next = (hole + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+            int home = homeOf(keys[next] - 1, mask);
+            // move next into the hole unless its home lies cyclically in (hole, next]
+            if(((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                owe[hole] = owe[next];
+                getBack[hole] = getBack[next];
+                hole = next;
+            }
+        }
+        keys[hole] = EMPTY;
+        owe[hole] = 0;
+        getBack[hole] = 0;
+        size--;
+    }
+
+    public void clear(){
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(owe, 0);
+        Arrays.fill(getBack, 0);
+        size = 0;
+    }
+
+    public void forEach(BalanceVisitor visitor){
+        for(int slot = 0; slot < keys.length; slot++) {
+            if(keys[slot] != EMPTY) visitor.visit(keys[slot] - 1, owe[slot], getBack[slot]);
+        }
+    }
+
+    // slot holding userIndex, or the empty slot where it would go
+    private int slotOf(int userIndex){
+        int mask = keys.length - 1;
+        int slot = homeOf(userIndex, mask);
+        while(keys[slot] != EMPTY && keys[slot] != userIndex + 1) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static int homeOf(int userIndex, int mask){
+        int h = userIndex * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void allocate(int capacity){
+        int[] oldKeys = keys;
+        long[] oldOwe = owe;
+        long[] oldGetBack = getBack;
+        keys = new int[capacity];
+        owe = new long[capacity];
+        getBack = new long[capacity];
+        if(oldKeys == null) return;
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] == EMPTY) continue;
+            int slot = slotOf(oldKeys[i] - 1);
+            keys[slot] = oldKeys[i];
+            owe[slot] = oldOwe[i];
+            getBack[slot] = oldGetBack[i];
+        }
+    }
 }
 
 class Split {
     User user;
-    double amountOwe;
+    long amountOwe;
 
-    public Split(User user, double amountOwe){
+    public Split(User user, long amountOwe){
         this.user = user;
         this.amountOwe = amountOwe;
     }
 
     public User getUser() { return user; }
     public void setUser(User user) { this.user = user; }
-    public double getAmountOwe() { return amountOwe; }
-    public void setAmountOwe(double amountOwe) { this.amountOwe = amountOwe; }
+    public long getAmountOwe() { return amountOwe; }
+    public void setAmountOwe(long amountOwe) { this.amountOwe = amountOwe; }
 }
 
 // ------------------------
 // 2) Supporting structures
 // ------------------------
 class UserExpenseBalanceSheet {
-    Map<String, Balance> userVsBalance;
-    double totalYourExpense;
-    double totalPayment;
-    double totalYouOwe;
-    double totalYouGetBack;
+    BalanceMap balances; // counterparty user index -> what you owe them / what they owe you
+    long totalYourExpense;
+    long totalPayment;
+    long totalYouOwe;
+    long totalYouGetBack;
+    long appliedSequence; // journal sequence of the last record posted to this sheet, 0 when not journaled
+    Set<Group> groupsWithPosition; // groups in which this user has a non-zero net position
 
     public UserExpenseBalanceSheet(){
-        userVsBalance = new HashMap<>();
+        balances = new BalanceMap();
+        groupsWithPosition = new HashSet<>();
         totalYourExpense = 0;
         totalPayment = 0;
         totalYouOwe = 0;
         totalYouGetBack = 0;
     }
 
-    public Map<String, Balance> getUserVsBalance() { return userVsBalance; }
-    public double getTotalYourExpense() { return totalYourExpense; }
-    public void setTotalYourExpense(double totalYourExpense) { this.totalYourExpense = totalYourExpense; }
-    public double getTotalYouOwe() { return totalYouOwe; }
-    public void setTotalYouOwe(double totalYouOwe) { this.totalYouOwe = totalYouOwe; }
-    public double getTotalYouGetBack() { return totalYouGetBack; }
-    public void setTotalYouGetBack(double totalYouGetBack) { this.totalYouGetBack = totalYouGetBack; }
-    public double getTotalPayment() { return totalPayment; }
-    public void setTotalPayment(double totalPayment) { this.totalPayment = totalPayment; }
+    public BalanceMap getBalances() { return balances; }
+
+    // copy keyed by user id, for callers that want the object view; not used on the posting path
+    public Map<String, Balance> getUserVsBalance() {
+        Map<String, Balance> userVsBalance = new HashMap<>();
+        UserIdInterner interner = UserIdInterner.getInstance();
+        balances.forEach((userIndex, amountOwe, amountGetBack) -> {
+            Balance balance = new Balance();
+            balance.setAmountOwe(amountOwe);
+            balance.setAmountGetBack(amountGetBack);
+            userVsBalance.put(interner.idOf(userIndex), balance);
+        });
+        return userVsBalance;
+    }
+    public long getTotalYourExpense() { return totalYourExpense; }
+    public void setTotalYourExpense(long totalYourExpense) { this.totalYourExpense = totalYourExpense; }
+    public long getTotalYouOwe() { return totalYouOwe; }
+    public void setTotalYouOwe(long totalYouOwe) { this.totalYouOwe = totalYouOwe; }
+    public long getTotalYouGetBack() { return totalYouGetBack; }
+    public void setTotalYouGetBack(long totalYouGetBack) { this.totalYouGetBack = totalYouGetBack; }
+    public long getTotalPayment() { return totalPayment; }
+    public void setTotalPayment(long totalPayment) { this.totalPayment = totalPayment; }
+    public long getAppliedSequence() { return appliedSequence; }
+    public void setAppliedSequence(long appliedSequence) { this.appliedSequence = appliedSequence; }
+    public Set<Group> getGroupsWithPosition() { return groupsWithPosition; }
 }
 
 enum ExpenseSplitType {
@@ -101,56 +337,66 @@ enum ExpenseSplitType {
 // 3) Strategy pattern for splits
 // ------------------------
 interface ExpenseSplit {
-    void validateSplitRequest(List<Split> splitList, double totalAmount);
+    void validateSplitRequest(List<Split> splitList, long totalAmount);
 }
 
 class EqualExpenseSplit implements ExpenseSplit{
     @Override
-    public void validateSplitRequest(List<Split> splitList, double totalAmount) {
+    public void validateSplitRequest(List<Split> splitList, long totalAmount) {
         if(splitList == null || splitList.isEmpty()) throw new IllegalArgumentException("Splits required");
-        double amountShouldBePresent = totalAmount / splitList.size();
-        // allow small epsilon for floating point
-        double eps = 0.0001;
+        if(totalAmount <= 0) throw new IllegalArgumentException("Expense amount must be positive");
+        // each share is total/n, with the indivisible remainder spread one minor unit at a time
+        long amountShouldBePresent = totalAmount / splitList.size();
+        long sum = 0;
         for(Split split: splitList) {
-           if(Math.abs(split.getAmountOwe() - amountShouldBePresent) > eps) {
+           long amount = split.getAmountOwe();
+           if(amount != amountShouldBePresent && amount != amountShouldBePresent + 1) {
                throw new IllegalArgumentException("Equal split amounts do not match");
            }
+           sum += amount;
         }
+        if(sum != totalAmount) throw new IllegalArgumentException("Equal split amounts must sum to total");
     }
 }
 
 class PercentageExpenseSplit implements ExpenseSplit {
     @Override
-    public void validateSplitRequest(List<Split> splitList, double totalAmount) {
+    public void validateSplitRequest(List<Split> splitList, long totalAmount) {
         if(splitList == null || splitList.isEmpty()) throw new IllegalArgumentException("Splits required");
-        double sumPercent = 0;
+        if(totalAmount <= 0) throw new IllegalArgumentException("Expense amount must be positive");
+        long sumPercent = 0;
         for(Split s: splitList){
-            // here amountOwe represents percentage in [0..100]
+            // here amountOwe represents percentage in basis points [0..10000]
+            if(s.getAmountOwe() < 0) throw new IllegalArgumentException("Percentages must not be negative");
             sumPercent += s.getAmountOwe();
         }
-        double eps = 0.0001;
-        if(Math.abs(sumPercent - 100.0) > eps) throw new IllegalArgumentException("Percentages must sum to 100");
+        if(sumPercent != Money.BASIS_POINTS_PER_WHOLE) throw new IllegalArgumentException("Percentages must sum to 100");
         // actual per-user amount = (percent/100) * totalAmount - that calculation happens in controller
     }
 }
 
 class UnequalExpenseSplit implements ExpenseSplit {
     @Override
-    public void validateSplitRequest(List<Split> splitList, double totalAmount) {
+    public void validateSplitRequest(List<Split> splitList, long totalAmount) {
         if(splitList == null || splitList.isEmpty()) throw new IllegalArgumentException("Splits required");
-        double sum = 0;
+        if(totalAmount <= 0) throw new IllegalArgumentException("Expense amount must be positive");
+        long sum = 0;
         for(Split s: splitList) sum += s.getAmountOwe();
-        double eps = 0.0001;
-        if(Math.abs(sum - totalAmount) > eps) throw new IllegalArgumentException("Unequal split amounts must sum to total");
+        if(sum != totalAmount) throw new IllegalArgumentException("Unequal split amounts must sum to total");
     }
 }
 
+// the split strategies hold no state, so one shared instance of each serves every expense
 class SplitFactory {
+    private static final ExpenseSplit EQUAL_SPLIT = new EqualExpenseSplit();
+    private static final ExpenseSplit UNEQUAL_SPLIT = new UnequalExpenseSplit();
+    private static final ExpenseSplit PERCENTAGE_SPLIT = new PercentageExpenseSplit();
+
     public static ExpenseSplit getSplitObject(ExpenseSplitType splitType) {
         switch (splitType) {
-            case EQUAL: return new EqualExpenseSplit();
-            case UNEQUAL: return new UnequalExpenseSplit();
-            case PERCENTAGE: return new PercentageExpenseSplit();
+            case EQUAL: return EQUAL_SPLIT;
+            case UNEQUAL: return UNEQUAL_SPLIT;
+            case PERCENTAGE: return PERCENTAGE_SPLIT;
             default: throw new IllegalArgumentException("Unknown split type");
         }
     }
@@ -162,12 +408,12 @@ class SplitFactory {
 class Expense {
     String expenseId;
     String description;
-    double expenseAmount;
+    long expenseAmount;
     User paidByUser;
     ExpenseSplitType splitType;
     List<Split> splitDetails = new ArrayList<>();
 
-    public Expense(String expenseId, double expenseAmount, String description,
+    public Expense(String expenseId, long expenseAmount, String description,
                    User paidByUser, ExpenseSplitType splitType, List<Split> splitDetails) {
         this.expenseId = expenseId;
         this.expenseAmount = expenseAmount;
@@ -178,21 +424,29 @@ class Expense {
     }
 
     public String getExpenseId(){ return expenseId; }
-    public double getExpenseAmount(){ return expenseAmount; }
+    public String getDescription(){ return description; }
+    public long getExpenseAmount(){ return expenseAmount; }
+    public ExpenseSplitType getSplitType(){ return splitType; }
     public User getPaidByUser(){ return paidByUser; }
     public List<Split> getSplitDetails(){ return splitDetails; }
 }
 
 class Group {
+    // placeholder that claims an expense id while its expense is being posted
+    private static final Expense RESERVED = new Expense(null, 0, null, null, null, Collections.emptyList());
+
     String groupId;
     String groupName;
     List<User> groupMembers;
-    List<Expense> expenseList;
+    Map<String, Expense> expenseIndex; // expenseId -> expense, so deletes cost the same as adds
+    // positive = the group owes this user; a user's entry only changes under that user's stripe
+    Map<User, Long> netPositions;
     ExpenseController expenseController;
 
     Group(){
         groupMembers = new ArrayList<>();
-        expenseList = new ArrayList<>();
+        expenseIndex = new ConcurrentHashMap<>();
+        netPositions = new ConcurrentHashMap<>();
         expenseController = new ExpenseController();
     }
 
@@ -202,120 +456,1227 @@ class Group {
     public String getGroupId() { return groupId; }
     public void setGroupId(String groupId) { this.groupId = groupId; }
     public void setGroupName(String groupName) { this.groupName = groupName; }
+    public List<User> getGroupMembers() { return groupMembers; }
+    public Collection<Expense> getExpenseList() {
+        List<Expense> expenses = new ArrayList<>(expenseIndex.size());
+        for(Expense expense : expenseIndex.values()) if(expense != RESERVED) expenses.add(expense);
+        return expenses;
+    }
+    public Expense getExpense(String expenseId) {
+        Expense expense = expenseIndex.get(expenseId);
+        return expense == RESERVED ? null : expense;
+    }
+    public Map<User, Long> getNetPositions() { return netPositions; }
 
-    public Expense createExpense(String expenseId, String description, double expenseAmount,
+    // who should pay whom, with as few transfers as possible, to clear this group's expenses
+    public List<Transfer> planSettlement() { return SettlementPlanner.planSettlement(this); }
+
+    // the id is reserved before posting, so two concurrent creates with the same id cannot both post
+    public Expense createExpense(String expenseId, String description, long expenseAmount,
                                  List<Split> splitDetails, ExpenseSplitType splitType, User paidByUser) {
-        Expense expense = expenseController.createExpense(expenseId, description, expenseAmount, splitDetails, splitType, paidByUser);
-        expenseList.add(expense);
+        if(expenseIndex.putIfAbsent(expenseId, RESERVED) != null) throw new IllegalArgumentException("Expense already exists: " + expenseId);
+        Expense expense;
+        try {
+            expense = expenseController.createExpense(this, expenseId, description, expenseAmount, splitDetails, splitType, paidByUser);
+        } catch (RuntimeException e) {
+            expenseIndex.remove(expenseId, RESERVED);
+            throw e;
+        }
+        return expense;
+    }
+
+    // Bulk import of expenses built with new Expense(...). Every id is reserved up front, so a
+    // duplicate rejects the whole batch before anything is posted.
+    public List<Expense> createExpenses(List<Expense> expenses) {
+        List<String> reservedIds = new ArrayList<>(expenses.size());
+        try {
+            for(Expense expense : expenses) {
+                String expenseId = expense.getExpenseId();
+                if(expenseIndex.putIfAbsent(expenseId, RESERVED) != null) throw new IllegalArgumentException("Expense already exists: " + expenseId);
+                reservedIds.add(expenseId);
+            }
+            expenseController.createExpenses(this, expenses);
+        } catch (RuntimeException e) {
+            for(String expenseId : reservedIds) expenseIndex.remove(expenseId, RESERVED);
+            throw e;
+        }
+        return expenses;
+    }
+
+    // removes the expense and posts an exact compensating entry, O(splits); null if unknown or
+    // still being posted
+    public Expense deleteExpense(String expenseId) {
+        Expense expense = expenseIndex.get(expenseId);
+        if(expense == null || expense == RESERVED || !expenseIndex.remove(expenseId, expense)) return null;
+        expenseController.deleteExpense(this, expense);
         return expense;
     }
+
+    // Settlement within the group: checked against what payer owes and payee is owed here rather
+    // than overall, and moves the group's net positions, so once planSettlement() has been paid the
+    // next plan is empty.
+    public void settle(User payer, User payee, long amount) {
+        BalanceSheetController.getInstance().settle(this, payer, payee, amount);
+    }
+
+    // Indexes a posted expense in place of its reservation and adds it to the net positions; called
+    // with the stripes of every user involved held, so a snapshot that has passed those stripes
+    // sees it.
+    void postExpense(Expense expense) {
+        expenseIndex.put(expense.getExpenseId(), expense);
+        postNetPositions(expense.getPaidByUser(), expense.getSplitDetails(), 1);
+    }
+
+    // called with the stripes of every user involved held
+    void postNetPositions(User paidBy, List<Split> splits, int sign) {
+        for(Split split : splits) {
+            if(split.getUser() == paidBy) continue;
+            addNetPosition(paidBy, sign * split.getAmountOwe());
+            addNetPosition(split.getUser(), -sign * split.getAmountOwe());
+        }
+    }
+
+    // called with the payer's and payee's stripes held
+    void postSettlement(User payer, User payee, long amount) {
+        addNetPosition(payer, amount);
+        addNetPosition(payee, -amount);
+    }
+
+    void validateSettlement(User payer, User payee, long amount) {
+        if(amount <= 0) throw new IllegalArgumentException("Settlement amount must be positive");
+        if(payer.getUserId().equals(payee.getUserId())) throw new IllegalArgumentException("Cannot settle with yourself");
+        long payerDebt = -netPositions.getOrDefault(payer, 0L);
+        if(amount > payerDebt) throw new IllegalArgumentException("Settlement exceeds amount owed in group: " + Money.format(Math.max(payerDebt, 0)));
+        long payeeCredit = netPositions.getOrDefault(payee, 0L);
+        if(amount > payeeCredit) throw new IllegalArgumentException("Settlement exceeds amount due to payee in group: " + Money.format(Math.max(payeeCredit, 0)));
+    }
+
+    private void addNetPosition(User user, long delta) {
+        setNetPosition(user, netPositions.getOrDefault(user, 0L) + delta);
+    }
+
+    // called with the user's stripe held; the user's sheet tracks the groups it has a position in
+    void setNetPosition(User user, long position) {
+        Set<Group> groups = user.getUserExpenseBalanceSheet().getGroupsWithPosition();
+        if(position == 0) {
+            netPositions.remove(user);
+            groups.remove(this);
+        } else {
+            netPositions.put(user, position);
+            groups.add(this);
+        }
+    }
 }
 
 // ------------------------
 // 5) Controllers / Managers
 // ------------------------
+// users are looked up by id through a concurrent hash index; userList only keeps registration order
 class UserController {
+    Map<String, User> userIndex;
     List<User> userList;
-    public UserController(){ userList = new ArrayList<>(); }
-    public void addUser(User user) { userList.add(user); }
-    public User getUser(String userID) {
-        for (User user : userList) if (user.getUserId().equals(userID)) return user;
-        return null;
+    public UserController(){ this(16); }
+    // pre-size for bulk loads so the index does not rehash while it fills up
+    public UserController(int expectedUsers){
+        userIndex = new ConcurrentHashMap<>(expectedUsers);
+        userList = new ArrayList<>(expectedUsers);
+    }
+    public void addUser(User user) {
+        if(userIndex.putIfAbsent(user.getUserId(), user) != null) throw new IllegalArgumentException("User already exists: " + user.getUserId());
+        synchronized (userList) { userList.add(user); }
+    }
+    // bulk registration: indexes every user, then appends them to userList under a single lock
+    public void addUsers(Collection<User> users) {
+        List<User> added = new ArrayList<>(users.size());
+        try {
+            for(User user : users) {
+                if(userIndex.putIfAbsent(user.getUserId(), user) != null) throw new IllegalArgumentException("User already exists: " + user.getUserId());
+                added.add(user);
+            }
+        } finally {
+            synchronized (userList) { userList.addAll(added); }
+        }
+    }
+    public User getUser(String userID) { return userIndex.get(userID); }
+    public List<User> getAllUsers(){
+        synchronized (userList) { return new ArrayList<>(userList); }
     }
-    public List<User> getAllUsers(){ return userList; }
 }
 
 class GroupController {
-    List<Group> groupList;
-    public GroupController(){ groupList = new ArrayList<>(); }
+    Map<String, Group> groupIndex;
+    public GroupController(){ groupIndex = new ConcurrentHashMap<>(); }
     public void createNewGroup(String groupId, String groupName, User createdByUser) {
         Group group = new Group();
         group.setGroupId(groupId);
         group.setGroupName(groupName);
         group.addMember(createdByUser);
-        groupList.add(group);
-    }
-    public Group getGroup(String groupId){
-        for(Group g: groupList) if(g.getGroupId().equals(groupId)) return g;
-        return null;
+        if(groupIndex.putIfAbsent(groupId, group) != null) throw new IllegalArgumentException("Group already exists: " + groupId);
     }
+    public Group getGroup(String groupId){ return groupIndex.get(groupId); }
+    public Collection<Group> getAllGroups(){ return groupIndex.values(); }
 }
 
-// BalanceSheetController made singleton so ExpenseController can access it easily
+// BalanceSheetController made singleton so ExpenseController can access it easily.
+// Each user's sheet is guarded by one of LOCK_STRIPES locks (picked by user id); an expense locks the
+// stripes of the payer and all split users in ascending stripe order, so postings are atomic across
+// every affected sheet, cannot deadlock, and expenses touching different users run in parallel.
+// Settlements lock the payer's and payee's stripes the same way.
 class BalanceSheetController {
+    private static final int LOCK_STRIPES = 256;
     private static BalanceSheetController INSTANCE = new BalanceSheetController();
-    private BalanceSheetController() {}
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    private static final CompletableFuture<JournalPosition> NOT_JOURNALED = CompletableFuture.completedFuture(new JournalPosition(0, 0));
+    private volatile ExpenseJournal journal;
+    private BalanceSheetController() {
+        for(int i = 0; i < LOCK_STRIPES; i++) stripes[i] = new ReentrantLock();
+    }
     public static BalanceSheetController getInstance(){ return INSTANCE; }
 
-    public void updateUserExpenseBalanceSheet(User expensePaidBy, List<Split> splits, double totalExpenseAmount){
+    public void setJournal(ExpenseJournal journal){ this.journal = journal; }
+
+    // Journals the expense (when a journal is attached) and posts it to every affected sheet. The
+    // record is enqueued while the stripes are held, so the journal sees each user's operations in
+    // the same order they were applied and replay reproduces order-sensitive settlements exactly;
+    // the fsync is awaited after the stripes are released, so postings on a busy user's stripe do
+    // not queue up behind each other's disk writes.
+    public void recordExpense(Group group, Expense expense){
+        CompletableFuture<?> durable;
+        int[] lockedStripes = lockStripes(expense.getPaidByUser(), expense.getSplitDetails());
+        try {
+            JournalEntry entry = JournalEntry.expense(groupIdOf(group), expense);
+            durable = enqueueToJournal(entry);
+            postExpense(expense.getPaidByUser(), expense.getSplitDetails(), expense.getExpenseAmount(), 1);
+            markApplied(entry.sequence, expense.getPaidByUser(), expense.getSplitDetails());
+            if(group != null) group.postExpense(expense);
+        } finally {
+            unlockStripes(lockedStripes);
+        }
+        durable.join();
+    }
+
+    // Bulk version of recordExpense: one ordered pass over every stripe the batch touches, all
+    // entries handed to the journal together (one group commit instead of a wait per entry), and
+    // balances posted once per (payer, debtor) pair and once per user total instead of per split.
+    public void recordExpenses(Group group, List<Expense> expenses){
+        List<User> users = new ArrayList<>();
+        List<JournalEntry> entries = new ArrayList<>(expenses.size());
+        for(Expense expense : expenses) {
+            users.add(expense.getPaidByUser());
+            for(Split split : expense.getSplitDetails()) users.add(split.getUser());
+            entries.add(JournalEntry.expense(groupIdOf(group), expense));
+        }
+        CompletableFuture<?> durable = NOT_JOURNALED;
+        int[] lockedStripes = lockStripes(users);
+        try {
+            ExpenseJournal currentJournal = journal;
+            if(currentJournal != null) durable = currentJournal.enqueueAll(entries);
+            postExpenses(expenses);
+            for(int i = 0; i < expenses.size(); i++) {
+                Expense expense = expenses.get(i);
+                markApplied(entries.get(i).sequence, expense.getPaidByUser(), expense.getSplitDetails());
+                if(group != null) group.postExpense(expense);
+            }
+        } finally {
+            unlockStripes(lockedStripes);
+        }
+        durable.join();
+    }
+
+    // journals a compensating entry for the expense and posts its exact negation
+    public void recordExpenseDeletion(Group group, Expense expense){
+        CompletableFuture<?> durable;
+        int[] lockedStripes = lockStripes(expense.getPaidByUser(), expense.getSplitDetails());
+        try {
+            JournalEntry entry = JournalEntry.expenseDeletion(groupIdOf(group), expense);
+            durable = enqueueToJournal(entry);
+            postExpense(expense.getPaidByUser(), expense.getSplitDetails(), expense.getExpenseAmount(), -1);
+            markApplied(entry.sequence, expense.getPaidByUser(), expense.getSplitDetails());
+            if(group != null) group.postNetPositions(expense.getPaidByUser(), expense.getSplitDetails(), -1);
+        } finally {
+            unlockStripes(lockedStripes);
+        }
+        durable.join();
+    }
+
+    // payer pays payee 'amount' towards what payer owes overall (a planned transfer need not follow a
+    // direct debt); both sheets change atomically under the same ordered stripe locks as expense
+    // postings, so it cannot deadlock against them
+    public void settle(User payer, User payee, long amount){
+        settle(null, payer, payee, amount);
+    }
+
+    // a group settlement is validated against the group's net positions instead of the overall
+    // balances, and moves those positions as well
+    public void settle(Group group, User payer, User payee, long amount){
+        CompletableFuture<?> durable;
+        int[] lockedStripes = lockStripes(payer, payee);
+        try {
+            if(group == null) validateSettlement(payer, payee, amount);
+            else group.validateSettlement(payer, payee, amount);
+            JournalEntry entry = JournalEntry.settlement(groupIdOf(group), payer, payee, amount);
+            durable = enqueueToJournal(entry);
+            postSettlement(payer, payee, amount);
+            markApplied(entry.sequence, payer, payee);
+            if(group != null) group.postSettlement(payer, payee, amount);
+        } finally {
+            unlockStripes(lockedStripes);
+        }
+        durable.join();
+    }
+
+    public void updateUserExpenseBalanceSheet(User expensePaidBy, List<Split> splits, long totalExpenseAmount){
+        int[] lockedStripes = lockStripes(expensePaidBy, splits);
+        try {
+            postExpense(expensePaidBy, splits, totalExpenseAmount, 1);
+        } finally {
+            unlockStripes(lockedStripes);
+        }
+    }
+
+    // Posts one journal record during recovery. The snapshot copies stripe by stripe while postings
+    // go on, so a record that raced it can already be in some of its users' sheets (appliedSequence
+    // at or past the record) and not in the others'. Only the others are brought forward: every user
+    // that has the record first takes its pair balances with them mirrored from their sheets, so the
+    // posting reads the state from before the record, and gets its own sheet and group position back
+    // afterwards.
+    public void replay(JournalEntry entry, Group group, User paidBy, List<Split> splits){
+        List<User> users = new ArrayList<>(splits.size() + 1);
+        users.add(paidBy);
+        for(Split split : splits) users.add(split.getUser());
+        int[] lockedStripes = lockStripes(users);
+        try {
+            Set<User> seen = new HashSet<>();
+            List<User> current = new ArrayList<>();
+            List<User> behind = new ArrayList<>();
+            for(User user : users) {
+                if(!seen.add(user)) continue;
+                if(user.getUserExpenseBalanceSheet().getAppliedSequence() >= entry.sequence) current.add(user);
+                else behind.add(user);
+            }
+            if(behind.isEmpty()) return;
+            List<SheetCopy> copies = new ArrayList<>(current.size());
+            for(User user : current) {
+                copies.add(new SheetCopy(user, group));
+                for(User other : behind) mirrorBalance(user, other);
+            }
+            if(entry.type == JournalEntry.SETTLEMENT) {
+                User payee = splits.get(0).getUser();
+                postSettlement(paidBy, payee, entry.amount);
+                if(group != null) group.postSettlement(paidBy, payee, entry.amount);
+            } else {
+                int sign = entry.type == JournalEntry.EXPENSE ? 1 : -1;
+                postExpense(paidBy, splits, entry.amount, sign);
+                if(group != null) group.postNetPositions(paidBy, splits, sign);
+            }
+            for(SheetCopy copy : copies) copy.restore();
+            for(User user : behind) user.getUserExpenseBalanceSheet().setAppliedSequence(entry.sequence);
+        } finally {
+            unlockStripes(lockedStripes);
+        }
+    }
+
+    // a sheet, and the user's position in one group, as they were before a replayed posting
+    private static class SheetCopy {
+        final User user;
+        final Group group;
+        final long yourExpense;
+        final long payment;
+        final long youOwe;
+        final long youGetBack;
+        final long groupPosition;
+        final BalanceMap balances = new BalanceMap();
+
+        SheetCopy(User user, Group group){
+            UserExpenseBalanceSheet sheet = user.getUserExpenseBalanceSheet();
+            this.user = user;
+            this.group = group;
+            this.yourExpense = sheet.getTotalYourExpense();
+            this.payment = sheet.getTotalPayment();
+            this.youOwe = sheet.getTotalYouOwe();
+            this.youGetBack = sheet.getTotalYouGetBack();
+            this.groupPosition = group == null ? 0 : group.getNetPositions().getOrDefault(user, 0L);
+            sheet.getBalances().forEach(balances::add);
+        }
+
+        void restore(){
+            UserExpenseBalanceSheet sheet = user.getUserExpenseBalanceSheet();
+            sheet.setTotalYourExpense(yourExpense);
+            sheet.setTotalPayment(payment);
+            sheet.setTotalYouOwe(youOwe);
+            sheet.setTotalYouGetBack(youGetBack);
+            sheet.getBalances().clear();
+            balances.forEach(sheet.getBalances()::add);
+            if(group != null) group.setNetPosition(user, groupPosition);
+        }
+    }
+
+    // sets user's balance with other to the mirror image of other's balance with user
+    private static void mirrorBalance(User user, User other){
+        BalanceMap balances = user.getUserExpenseBalanceSheet().getBalances();
+        BalanceMap otherBalances = other.getUserExpenseBalanceSheet().getBalances();
+        int otherIndex = other.getUserIndex();
+        balances.add(otherIndex, otherBalances.getGetBack(user.getUserIndex()) - balances.getOwe(otherIndex),
+                otherBalances.getOwe(user.getUserIndex()) - balances.getGetBack(otherIndex));
+    }
+
+    // stamps every involved sheet with the record just posted to it; sequence 0 means not journaled
+    private static void markApplied(long sequence, User paidBy, List<Split> splits){
+        if(sequence == 0) return;
+        paidBy.getUserExpenseBalanceSheet().setAppliedSequence(sequence);
+        for(Split split : splits) split.getUser().getUserExpenseBalanceSheet().setAppliedSequence(sequence);
+    }
+
+    private static void markApplied(long sequence, User payer, User payee){
+        if(sequence == 0) return;
+        payer.getUserExpenseBalanceSheet().setAppliedSequence(sequence);
+        payee.getUserExpenseBalanceSheet().setAppliedSequence(sequence);
+    }
+
+    private static String groupIdOf(Group group){ return group == null ? null : group.getGroupId(); }
+
+    // queues the record (when a journal is attached); callers wait on the result once unlocked
+    private CompletableFuture<?> enqueueToJournal(JournalEntry entry){
+        ExpenseJournal currentJournal = journal;
+        return currentJournal == null ? NOT_JOURNALED : currentJournal.enqueue(entry);
+    }
+
+    // sorted, de-duplicated stripe indexes of every user touched by the expense, all locked on return
+    int[] lockStripes(User expensePaidBy, List<Split> splits) {
+        int[] indexes = new int[splits.size() + 1];
+        indexes[0] = stripeOf(expensePaidBy);
+        for(int i = 0; i < splits.size(); i++) indexes[i + 1] = stripeOf(splits.get(i).getUser());
+        return lockStripeIndexes(indexes);
+    }
+
+    int[] lockStripes(List<User> users) {
+        int[] indexes = new int[users.size()];
+        for(int i = 0; i < indexes.length; i++) indexes[i] = stripeOf(users.get(i));
+        return lockStripeIndexes(indexes);
+    }
+
+    int[] lockStripes(User first, User second) {
+        return lockStripeIndexes(new int[]{stripeOf(first), stripeOf(second)});
+    }
+
+    private int[] lockStripeIndexes(int[] indexes) {
+        Arrays.sort(indexes);
+        int distinct = 0;
+        for(int i = 0; i < indexes.length; i++) {
+            if(i == 0 || indexes[i] != indexes[i - 1]) indexes[distinct++] = indexes[i];
+        }
+        int[] lockedStripes = Arrays.copyOf(indexes, distinct);
+        for(int stripe : lockedStripes) stripes[stripe].lock();
+        return lockedStripes;
+    }
+
+    void unlockStripes(int[] lockedStripes) {
+        for(int i = lockedStripes.length - 1; i >= 0; i--) stripes[lockedStripes[i]].unlock();
+    }
+
+    private int stripeOf(User user) {
+        int h = user.getUserId().hashCode();
+        return (h ^ (h >>> 16)) & (LOCK_STRIPES - 1);
+    }
+
+    // Caller holds the stripe locks of the payer and every split user; sign -1 reverses an expense.
+    // A reversal takes each share off the debtor's debt like a settlement would, so a share that was
+    // already settled turns into the payer owing it back instead of driving a balance negative.
+    private void postExpense(User expensePaidBy, List<Split> splits, long totalExpenseAmount, int sign){
         UserExpenseBalanceSheet paidByUserExpenseSheet = expensePaidBy.getUserExpenseBalanceSheet();
-        paidByUserExpenseSheet.setTotalPayment(paidByUserExpenseSheet.getTotalPayment() + totalExpenseAmount);
+        paidByUserExpenseSheet.setTotalPayment(paidByUserExpenseSheet.getTotalPayment() + sign * totalExpenseAmount);
 
         for(Split split : splits) {
             User userOwe = split.getUser();
             UserExpenseBalanceSheet oweUserExpenseSheet = userOwe.getUserExpenseBalanceSheet();
-            double oweAmount = split.getAmountOwe();
+            long oweAmount = sign * split.getAmountOwe();
 
             if(expensePaidBy.getUserId().equals(userOwe.getUserId())){
                 paidByUserExpenseSheet.setTotalYourExpense(paidByUserExpenseSheet.getTotalYourExpense()+oweAmount);
             }
+            else if(sign < 0) {
+                oweUserExpenseSheet.setTotalYourExpense(oweUserExpenseSheet.getTotalYourExpense() + oweAmount);
+                reduceDebt(userOwe, expensePaidBy, -oweAmount);
+            }
             else {
                 paidByUserExpenseSheet.setTotalYouGetBack(paidByUserExpenseSheet.getTotalYouGetBack() + oweAmount);
 
-                Balance userOweBalance = paidByUserExpenseSheet.getUserVsBalance().getOrDefault(userOwe.getUserId(), new Balance());
-                paidByUserExpenseSheet.getUserVsBalance().putIfAbsent(userOwe.getUserId(), userOweBalance);
-                userOweBalance.setAmountGetBack(userOweBalance.getAmountGetBack() + oweAmount);
+                paidByUserExpenseSheet.getBalances().add(userOwe.getUserIndex(), 0, oweAmount);
 
                 oweUserExpenseSheet.setTotalYouOwe(oweUserExpenseSheet.getTotalYouOwe() + oweAmount);
                 oweUserExpenseSheet.setTotalYourExpense(oweUserExpenseSheet.getTotalYourExpense() + oweAmount);
 
-                Balance userPaidBalance = oweUserExpenseSheet.getUserVsBalance().getOrDefault(expensePaidBy.getUserId(), new Balance());
-                oweUserExpenseSheet.getUserVsBalance().putIfAbsent(expensePaidBy.getUserId(), userPaidBalance);
-                userPaidBalance.setAmountOwe(userPaidBalance.getAmountOwe() + oweAmount);
+                oweUserExpenseSheet.getBalances().add(expensePaidBy.getUserIndex(), oweAmount, 0);
+            }
+        }
+    }
+
+    // per-user running totals of a batch, applied to the sheet in one step
+    private static class SheetDelta {
+        long payment;
+        long yourExpense;
+        long youOwe;
+        long youGetBack;
+    }
+
+    // caller holds the stripes of every user in the batch; the result is the same as posting each
+    // expense in turn, since postings only add up
+    private void postExpenses(List<Expense> expenses){
+        Map<User, SheetDelta> userVsDelta = new HashMap<>();
+        Map<Long, Long> pairVsAmount = new HashMap<>(); // (payer index << 32 | debtor index) -> amount
+        Map<Integer, User> indexVsUser = new HashMap<>();
+        for(Expense expense : expenses) {
+            User paidBy = expense.getPaidByUser();
+            SheetDelta paidByDelta = userVsDelta.computeIfAbsent(paidBy, user -> new SheetDelta());
+            paidByDelta.payment += expense.getExpenseAmount();
+            for(Split split : expense.getSplitDetails()) {
+                User userOwe = split.getUser();
+                long oweAmount = split.getAmountOwe();
+                if(paidBy.getUserId().equals(userOwe.getUserId())) {
+                    paidByDelta.yourExpense += oweAmount;
+                    continue;
+                }
+                paidByDelta.youGetBack += oweAmount;
+                SheetDelta oweDelta = userVsDelta.computeIfAbsent(userOwe, user -> new SheetDelta());
+                oweDelta.youOwe += oweAmount;
+                oweDelta.yourExpense += oweAmount;
+                indexVsUser.putIfAbsent(paidBy.getUserIndex(), paidBy);
+                indexVsUser.putIfAbsent(userOwe.getUserIndex(), userOwe);
+                pairVsAmount.merge(((long) paidBy.getUserIndex() << 32) | userOwe.getUserIndex(), oweAmount, Long::sum);
             }
         }
+        for(Map.Entry<User, SheetDelta> entry : userVsDelta.entrySet()) {
+            UserExpenseBalanceSheet sheet = entry.getKey().getUserExpenseBalanceSheet();
+            SheetDelta delta = entry.getValue();
+            sheet.setTotalPayment(sheet.getTotalPayment() + delta.payment);
+            sheet.setTotalYourExpense(sheet.getTotalYourExpense() + delta.yourExpense);
+            sheet.setTotalYouOwe(sheet.getTotalYouOwe() + delta.youOwe);
+            sheet.setTotalYouGetBack(sheet.getTotalYouGetBack() + delta.youGetBack);
+        }
+        for(Map.Entry<Long, Long> entry : pairVsAmount.entrySet()) {
+            int payerIndex = (int) (entry.getKey() >>> 32);
+            int debtorIndex = (int) (long) entry.getKey();
+            indexVsUser.get(payerIndex).getUserExpenseBalanceSheet().getBalances().add(debtorIndex, 0, entry.getValue());
+            indexVsUser.get(debtorIndex).getUserExpenseBalanceSheet().getBalances().add(payerIndex, entry.getValue(), 0);
+        }
+    }
+
+    // Caller holds both users' stripe locks. A settlement may not exceed what payer owes net across
+    // all counterparties, nor what payee is owed net, so transfers of a settle-up plan between users
+    // without a direct debt are accepted.
+    private void validateSettlement(User payer, User payee, long amount){
+        if(amount <= 0) throw new IllegalArgumentException("Settlement amount must be positive");
+        if(payer.getUserId().equals(payee.getUserId())) throw new IllegalArgumentException("Cannot settle with yourself");
+        UserExpenseBalanceSheet payerSheet = payer.getUserExpenseBalanceSheet();
+        UserExpenseBalanceSheet payeeSheet = payee.getUserExpenseBalanceSheet();
+        long payerNetDebt = payerSheet.getTotalYouOwe() - payerSheet.getTotalYouGetBack();
+        if(amount > payerNetDebt) throw new IllegalArgumentException("Settlement exceeds amount owed: " + Money.format(Math.max(payerNetDebt, 0)));
+        long payeeNetCredit = payeeSheet.getTotalYouGetBack() - payeeSheet.getTotalYouOwe();
+        if(amount > payeeNetCredit) throw new IllegalArgumentException("Settlement exceeds amount due to payee: " + Money.format(Math.max(payeeNetCredit, 0)));
+    }
+
+    // Pays down payer's recorded debt to payee first; the rest becomes a debt of payee to payer, which
+    // nets against what payer owes others (e.g. C owes B, B owes A, C pays A: each ends at zero net).
+    private void postSettlement(User payer, User payee, long amount){
+        reduceDebt(payer, payee, amount);
+    }
+
+    // Takes 'amount' off what debtor owes creditor, never letting either side of the pair go
+    // negative: what exceeds the recorded debt becomes a debt of creditor to debtor. On a pair with
+    // no settlements in between this is the exact inverse of posting the debt.
+    private void reduceDebt(User debtor, User creditor, long amount){
+        UserExpenseBalanceSheet debtorSheet = debtor.getUserExpenseBalanceSheet();
+        UserExpenseBalanceSheet creditorSheet = creditor.getUserExpenseBalanceSheet();
+        long paidDown = Math.min(amount, debtorSheet.getBalances().getOwe(creditor.getUserIndex()));
+        long advanced = amount - paidDown;
+
+        debtorSheet.getBalances().add(creditor.getUserIndex(), -paidDown, advanced);
+        debtorSheet.setTotalYouOwe(debtorSheet.getTotalYouOwe() - paidDown);
+        debtorSheet.setTotalYouGetBack(debtorSheet.getTotalYouGetBack() + advanced);
+
+        creditorSheet.getBalances().add(debtor.getUserIndex(), advanced, -paidDown);
+        creditorSheet.setTotalYouGetBack(creditorSheet.getTotalYouGetBack() - paidDown);
+        creditorSheet.setTotalYouOwe(creditorSheet.getTotalYouOwe() + advanced);
+
+        debtorSheet.getBalances().removeIfCleared(creditor.getUserIndex());
+        creditorSheet.getBalances().removeIfCleared(debtor.getUserIndex());
+    }
+
+    // Writes every balance sheet and every group's expenses together with the journal position they
+    // cover, so recovery reads the journal from there on. Postings are never stopped for it: the
+    // journal is marked first (a record before the mark was enqueued under its stripes, so it is
+    // fully posted once the snapshot holds any of them), then each stripe is copied under its own
+    // lock. A record after the mark may reach some sheets and not others; each sheet carries the
+    // sequence of the last record posted to it, so replay skips exactly what a sheet already holds.
+    // The file is written and fsynced outside the locks, then atomically renamed.
+    public void writeSnapshot(Path snapshotFile, Collection<User> users, Collection<Group> groups) throws IOException {
+        ExpenseJournal currentJournal = journal;
+        JournalPosition position = (currentJournal == null ? NOT_JOURNALED : currentJournal.mark()).join();
+        List<List<User>> usersByStripe = new ArrayList<>(LOCK_STRIPES);
+        for(int i = 0; i < LOCK_STRIPES; i++) usersByStripe.add(new ArrayList<>());
+        int userCount = 0;
+        for(User user : users) {
+            usersByStripe.get(stripeOf(user)).add(user);
+            userCount++;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(BalanceSnapshotFormat.MAGIC);
+        out.writeInt(BalanceSnapshotFormat.VERSION);
+        out.writeLong(position.getSequence());
+        out.writeLong(position.getOffset());
+        out.writeInt(userCount);
+        // every stripe is passed, even one without users, so no posting from before the mark is
+        // still running when the group indexes are copied below
+        for(int stripe = 0; stripe < LOCK_STRIPES; stripe++) {
+            stripes[stripe].lock();
+            try {
+                for(User user : usersByStripe.get(stripe)) writeSheet(out, user);
+            } finally {
+                stripes[stripe].unlock();
+            }
+        }
+        // expense ids reserved or indexed after the mark are replayed by id, which is idempotent
+        List<Group> groupList = new ArrayList<>(groups);
+        out.writeInt(groupList.size());
+        for(Group group : groupList) writeGroupExpenses(out, group);
+
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile())) {
+            bytes.writeTo(file);
+            file.getFD().sync();
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // caller holds the user's stripe; indexes are process local, so counterparties are written by user id
+    private void writeSheet(DataOutputStream out, User user) throws IOException {
+        UserExpenseBalanceSheet sheet = user.getUserExpenseBalanceSheet();
+        UserIdInterner interner = UserIdInterner.getInstance();
+        out.writeUTF(user.getUserId());
+        out.writeUTF(user.getUserName());
+        out.writeLong(sheet.getAppliedSequence());
+        out.writeLong(sheet.getTotalYourExpense());
+        out.writeLong(sheet.getTotalPayment());
+        out.writeLong(sheet.getTotalYouOwe());
+        out.writeLong(sheet.getTotalYouGetBack());
+        out.writeInt(sheet.getBalances().size());
+        sheet.getBalances().forEach((userIndex, amountOwe, amountGetBack) -> {
+            try {
+                out.writeUTF(interner.idOf(userIndex));
+                out.writeLong(amountOwe);
+                out.writeLong(amountGetBack);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        out.writeInt(sheet.getGroupsWithPosition().size());
+        for(Group group : sheet.getGroupsWithPosition()) {
+            out.writeUTF(group.getGroupId());
+            out.writeLong(group.getNetPositions().getOrDefault(user, 0L));
+        }
+    }
+
+    private void writeGroupExpenses(DataOutputStream out, Group group) throws IOException {
+        Collection<Expense> expenses = group.getExpenseList();
+        out.writeUTF(group.getGroupId());
+        out.writeInt(expenses.size());
+        for(Expense expense : expenses) {
+            out.writeUTF(expense.getExpenseId());
+            out.writeUTF(expense.getDescription() == null ? "" : expense.getDescription());
+            out.writeLong(expense.getExpenseAmount());
+            out.writeByte(expense.getSplitType() == null ? -1 : expense.getSplitType().ordinal());
+            out.writeUTF(expense.getPaidByUser().getUserId());
+            out.writeInt(expense.getSplitDetails().size());
+            for(Split split : expense.getSplitDetails()) {
+                out.writeUTF(split.getUser().getUserId());
+                out.writeLong(split.getAmountOwe());
+            }
+        }
+    }
+
+    // Restores balance sheets, group positions and group expense indexes from a snapshot, registering
+    // users it knows that are not registered yet; groups must already be registered.
+    public JournalPosition loadSnapshot(Path snapshotFile, UserController userController, GroupController groupController) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            if(in.readInt() != BalanceSnapshotFormat.MAGIC) throw new IOException("Not a balance snapshot: " + snapshotFile);
+            int version = in.readInt();
+            if(version != BalanceSnapshotFormat.VERSION) throw new IOException("Unsupported balance snapshot version " + version + ": " + snapshotFile);
+            JournalPosition position = new JournalPosition(in.readLong(), in.readLong());
+            int userCount = in.readInt();
+            for(int i = 0; i < userCount; i++) {
+                User user = userOf(in.readUTF(), in.readUTF(), userController);
+                UserExpenseBalanceSheet sheet = user.getUserExpenseBalanceSheet();
+                sheet.setAppliedSequence(in.readLong());
+                sheet.setTotalYourExpense(in.readLong());
+                sheet.setTotalPayment(in.readLong());
+                sheet.setTotalYouOwe(in.readLong());
+                sheet.setTotalYouGetBack(in.readLong());
+                sheet.getBalances().clear();
+                int balanceCount = in.readInt();
+                for(int j = 0; j < balanceCount; j++) {
+                    int counterparty = UserIdInterner.getInstance().intern(in.readUTF());
+                    long amountOwe = in.readLong();
+                    long amountGetBack = in.readLong();
+                    sheet.getBalances().add(counterparty, amountOwe, amountGetBack);
+                }
+                int groupCount = in.readInt();
+                for(int j = 0; j < groupCount; j++) {
+                    Group group = groupController.getGroup(in.readUTF());
+                    long netPosition = in.readLong();
+                    if(group != null) group.setNetPosition(user, netPosition);
+                }
+            }
+            int groupCount = in.readInt();
+            for(int i = 0; i < groupCount; i++) {
+                Group group = groupController.getGroup(in.readUTF());
+                int expenseCount = in.readInt();
+                for(int j = 0; j < expenseCount; j++) {
+                    String expenseId = in.readUTF();
+                    String description = in.readUTF();
+                    long amount = in.readLong();
+                    byte splitType = in.readByte();
+                    User paidBy = userController.getUser(in.readUTF());
+                    int splitCount = in.readInt();
+                    List<Split> splits = new ArrayList<>(splitCount);
+                    for(int k = 0; k < splitCount; k++) splits.add(new Split(userController.getUser(in.readUTF()), in.readLong()));
+                    if(group != null) {
+                        group.expenseIndex.put(expenseId, new Expense(expenseId, amount, description, paidBy,
+                                splitType < 0 ? null : ExpenseSplitType.values()[splitType], splits));
+                    }
+                }
+            }
+            return position;
+        }
+    }
+
+    private static User userOf(String userId, String userName, UserController userController){
+        User user = userController.getUser(userId);
+        if(user == null) {
+            user = new User(userId, userName);
+            userController.addUser(user);
+        }
+        return user;
     }
 
     public void showBalanceSheetOfUser(User user){
+        ReentrantLock lock = stripes[stripeOf(user)];
+        lock.lock();
+        try {
+            printBalanceSheet(user);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void printBalanceSheet(User user){
         System.out.println("---------------------------------------");
         System.out.println("Balance sheet of user : " + user.getUserId());
         UserExpenseBalanceSheet s = user.getUserExpenseBalanceSheet();
-        System.out.println("TotalYourExpense: " + s.getTotalYourExpense());
-        System.out.println("TotalGetBack: " + s.getTotalYouGetBack());
-        System.out.println("TotalYourOwe: " + s.getTotalYouOwe());
-        System.out.println("TotalPaymnetMade: " + s.getTotalPayment());
-        for(Map.Entry<String, Balance> entry : s.getUserVsBalance().entrySet()){
-            String userID = entry.getKey();
-            Balance balance = entry.getValue();
-            System.out.println("userID:" + userID + " YouGetBack:" + balance.getAmountGetBack() + " YouOwe:" + balance.getAmountOwe());
-        }
+        System.out.println("TotalYourExpense: " + Money.format(s.getTotalYourExpense()));
+        System.out.println("TotalGetBack: " + Money.format(s.getTotalYouGetBack()));
+        System.out.println("TotalYourOwe: " + Money.format(s.getTotalYouOwe()));
+        System.out.println("TotalPaymnetMade: " + Money.format(s.getTotalPayment()));
+        UserIdInterner interner = UserIdInterner.getInstance();
+        s.getBalances().forEach((userIndex, amountOwe, amountGetBack) ->
+            System.out.println("userID:" + interner.idOf(userIndex) + " YouGetBack:" + Money.format(amountGetBack) + " YouOwe:" + Money.format(amountOwe)));
         System.out.println("---------------------------------------");
     }
 }
 
 class ExpenseController {
-    public Expense createExpense(String expenseId, String description, double expenseAmount,
+    public Expense createExpense(String expenseId, String description, long expenseAmount,
+                                 List<Split> splitDetails, ExpenseSplitType splitType, User paidByUser) {
+        return createExpense(null, expenseId, description, expenseAmount, splitDetails, splitType, paidByUser);
+    }
+
+    public Expense createExpense(Group group, String expenseId, String description, long expenseAmount,
                                  List<Split> splitDetails, ExpenseSplitType splitType, User paidByUser) {
+        applyShares(splitDetails, computeShares(splitDetails, expenseAmount, splitType));
+
+        Expense expense = new Expense(expenseId, expenseAmount, description, paidByUser, splitType, splitDetails);
+
+        // Journal and update balances via BalanceSheetController singleton
+        BalanceSheetController.getInstance().recordExpense(group, expense);
+
+        return expense;
+    }
+
+    // Validates every expense of the batch and computes its shares before any split is rewritten or
+    // posted, so one bad expense rejects the whole batch and leaves every caller's splits untouched;
+    // then journals and posts them together.
+    public List<Expense> createExpenses(Group group, List<Expense> expenses) {
+        long[][] shares = new long[expenses.size()][];
+        for(int i = 0; i < shares.length; i++) {
+            Expense expense = expenses.get(i);
+            shares[i] = computeShares(expense.getSplitDetails(), expense.getExpenseAmount(), expense.getSplitType());
+        }
+        for(int i = 0; i < shares.length; i++) applyShares(expenses.get(i).getSplitDetails(), shares[i]);
+        BalanceSheetController.getInstance().recordExpenses(group, expenses);
+        return expenses;
+    }
+
+    // Validates the request and returns the exact minor-unit share of every split, or null when the
+    // splits already carry them (UNEQUAL). The splits themselves are not modified.
+    private long[] computeShares(List<Split> splitDetails, long expenseAmount, ExpenseSplitType splitType) {
         // Validate
         ExpenseSplit validator = SplitFactory.getSplitObject(splitType);
 
         // For percentage type, caller is expected to provide percent values in split.amountOwe
         validator.validateSplitRequest(splitDetails, expenseAmount);
 
-        // If percentage, convert splitDetails percentages to actual amounts
+        // EQUAL spreads the remainder over the first splits, PERCENTAGE converts basis points with
+        // the largest remainder method
+        if(splitType == ExpenseSplitType.EQUAL) return Money.allocateEqually(expenseAmount, splitDetails.size());
         if(splitType == ExpenseSplitType.PERCENTAGE){
-            for(Split s: splitDetails){
-                double percent = s.getAmountOwe();
-                s.setAmountOwe((percent/100.0) * expenseAmount);
+            long[] weights = new long[splitDetails.size()];
+            for(int i = 0; i < weights.length; i++) weights[i] = splitDetails.get(i).getAmountOwe();
+            return Money.allocate(expenseAmount, weights);
+        }
+        return null;
+    }
+
+    private void applyShares(List<Split> splitDetails, long[] shares) {
+        if(shares == null) return;
+        for(int i = 0; i < shares.length; i++) splitDetails.get(i).setAmountOwe(shares[i]);
+    }
+
+    public void deleteExpense(Group group, Expense expense) {
+        BalanceSheetController.getInstance().recordExpenseDeletion(group, expense);
+    }
+}
+
+// One payment of a settlement plan: 'from' pays 'to' the amount (minor units)
+class Transfer {
+    final User from;
+    final User to;
+    final long amount;
+
+    Transfer(User from, User to, long amount){
+        this.from = from;
+        this.to = to;
+        this.amount = amount;
+    }
+
+    public User getFrom() { return from; }
+    public User getTo() { return to; }
+    public long getAmount() { return amount; }
+}
+
+// Minimum cash-flow planner. Small groups (up to EXACT_SEARCH_LIMIT members with a non-zero net
+// position) get the exact minimum: n minus the largest number of zero-sum subgroups, found with a
+// bitmask DP. Larger groups use heap-based greedy matching of the largest creditor with the largest
+// debtor, which needs at most n-1 transfers and runs in O(n log n).
+class SettlementPlanner {
+    static final int EXACT_SEARCH_LIMIT = 16;
+
+    public static List<Transfer> planSettlement(Group group) {
+        Map<User, Long> netPositions = netPositions(group);
+        List<User> users = new ArrayList<>();
+        List<Long> amounts = new ArrayList<>();
+        for(Map.Entry<User, Long> entry : netPositions.entrySet()) {
+            if(entry.getValue() != 0) {
+                users.add(entry.getKey());
+                amounts.add(entry.getValue());
             }
         }
+        long[] net = new long[amounts.size()];
+        for(int i = 0; i < net.length; i++) net[i] = amounts.get(i);
+        return net.length <= EXACT_SEARCH_LIMIT ? exactPlan(users, net) : greedyPlan(users, net, allIndexes(net.length));
+    }
 
-        Expense expense = new Expense(expenseId, expenseAmount, description, paidByUser, splitType, splitDetails);
+    // positive = the group owes this user, negative = this user owes the group; read from the
+    // group's running positions (expenses net of deletions and group settlements), ordered by user id
+    // so the plan is deterministic
+    static Map<User, Long> netPositions(Group group) {
+        Map<User, Long> netPositions = new TreeMap<>(Comparator.comparing(User::getUserId));
+        netPositions.putAll(group.getNetPositions());
+        return netPositions;
+    }
 
-        // Update balances via BalanceSheetController singleton
-        BalanceSheetController.getInstance().updateUserExpenseBalanceSheet(paidByUser, splitDetails, expenseAmount);
+    static List<Transfer> greedyPlan(List<User> users, long[] net, int[] members) {
+        long[] remaining = net.clone();
+        PriorityQueue<Integer> creditors = new PriorityQueue<>((a, b) -> Long.compare(remaining[b], remaining[a]));
+        PriorityQueue<Integer> debtors = new PriorityQueue<>((a, b) -> Long.compare(remaining[a], remaining[b]));
+        for(int i : members) {
+            if(remaining[i] > 0) creditors.add(i);
+            else if(remaining[i] < 0) debtors.add(i);
+        }
+        List<Transfer> transfers = new ArrayList<>();
+        while(!creditors.isEmpty() && !debtors.isEmpty()) {
+            int creditor = creditors.poll();
+            int debtor = debtors.poll();
+            long amount = Math.min(remaining[creditor], -remaining[debtor]);
+            transfers.add(new Transfer(users.get(debtor), users.get(creditor), amount));
+            remaining[creditor] -= amount;
+            remaining[debtor] += amount;
+            if(remaining[creditor] > 0) creditors.add(creditor);
+            if(remaining[debtor] < 0) debtors.add(debtor);
+        }
+        return transfers;
+    }
 
-        return expense;
+    // splits the members into the largest number of zero-sum subgroups and settles each one greedily
+    static List<Transfer> exactPlan(List<User> users, long[] net) {
+        int n = net.length;
+        int full = (1 << n) - 1;
+        long[] sum = new long[1 << n];
+        int[] zeroSumGroups = new int[1 << n];
+        for(int mask = 1; mask <= full; mask++) {
+            int lowest = Integer.numberOfTrailingZeros(mask);
+            sum[mask] = sum[mask & (mask - 1)] + net[lowest];
+            int best = 0;
+            for(int rest = mask; rest != 0; rest &= rest - 1) {
+                best = Math.max(best, zeroSumGroups[mask ^ Integer.lowestOneBit(rest)]);
+            }
+            zeroSumGroups[mask] = best + (sum[mask] == 0 ? 1 : 0);
+        }
+
+        List<Transfer> transfers = new ArrayList<>();
+        List<Integer> subgroup = new ArrayList<>();
+        int mask = full;
+        while(mask != 0) {
+            int bonus = sum[mask] == 0 ? 1 : 0;
+            for(int rest = mask; rest != 0; rest &= rest - 1) {
+                int bit = Integer.lowestOneBit(rest);
+                if(zeroSumGroups[mask ^ bit] + bonus == zeroSumGroups[mask]) {
+                    subgroup.add(Integer.numberOfTrailingZeros(bit));
+                    mask ^= bit;
+                    break;
+                }
+            }
+            if(sum[mask] == 0) {
+                transfers.addAll(greedyPlan(users, net, subgroup.stream().mapToInt(Integer::intValue).toArray()));
+                subgroup.clear();
+            }
+        }
+        return transfers;
+    }
+
+    private static int[] allIndexes(int n) {
+        int[] indexes = new int[n];
+        for(int i = 0; i < n; i++) indexes[i] = i;
+        return indexes;
+    }
+}
+
+// ------------------------
+// 5b) Durability: append-only expense journal + balance snapshots
+// ------------------------
+// sequence of the last journal record a snapshot reflects, and the byte offset just after it
+class JournalPosition {
+    final long sequence;
+    final long offset;
+
+    JournalPosition(long sequence, long offset){
+        this.sequence = sequence;
+        this.offset = offset;
+    }
+
+    public long getSequence() { return sequence; }
+    public long getOffset() { return offset; }
+}
+
+class BalanceSnapshotFormat {
+    static final int MAGIC = 0x53574253; // "SWBS"
+    static final int VERSION = 2; // applied sequences, group positions and group expenses
+}
+
+// One journal record. The body is encoded and the sequence number assigned by the posting thread;
+// the journal's writer thread only frames and checksums it, so the group-commit loop stays cheap.
+class JournalEntry {
+    static final byte EXPENSE = 1;
+    static final byte EXPENSE_DELETION = 2;
+    static final byte SETTLEMENT = 3;
+
+    byte type;
+    long sequence;
+    String groupId;
+    String expenseId;
+    String description;
+    long amount;
+    ExpenseSplitType splitType;
+    String paidByUserId;
+    String[] splitUserIds;
+    long[] splitAmounts;
+
+    static JournalEntry expense(String groupId, Expense expense){
+        JournalEntry entry = new JournalEntry();
+        entry.type = EXPENSE;
+        entry.groupId = groupId;
+        entry.expenseId = expense.getExpenseId();
+        entry.description = expense.getDescription();
+        entry.amount = expense.getExpenseAmount();
+        entry.splitType = expense.getSplitType();
+        entry.paidByUserId = expense.getPaidByUser().getUserId();
+        List<Split> splits = expense.getSplitDetails();
+        entry.splitUserIds = new String[splits.size()];
+        entry.splitAmounts = new long[splits.size()];
+        for(int i = 0; i < splits.size(); i++) {
+            entry.splitUserIds[i] = splits.get(i).getUser().getUserId();
+            entry.splitAmounts[i] = splits.get(i).getAmountOwe();
+        }
+        return entry;
+    }
+
+    // carries the full expense, so replay can reverse it even if it predates the last snapshot
+    static JournalEntry expenseDeletion(String groupId, Expense expense){
+        JournalEntry entry = expense(groupId, expense);
+        entry.type = EXPENSE_DELETION;
+        return entry;
+    }
+
+    // payer is recorded as paidByUserId and the payee as the single split user
+    static JournalEntry settlement(String groupId, User payer, User payee, long amount){
+        JournalEntry entry = new JournalEntry();
+        entry.type = SETTLEMENT;
+        entry.groupId = groupId;
+        entry.description = "";
+        entry.amount = amount;
+        entry.paidByUserId = payer.getUserId();
+        entry.splitUserIds = new String[]{payee.getUserId()};
+        entry.splitAmounts = new long[]{amount};
+        return entry;
+    }
+
+    byte[] encodeBody(){
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(groupId == null ? "" : groupId);
+            out.writeUTF(expenseId == null ? "" : expenseId);
+            out.writeUTF(description == null ? "" : description);
+            out.writeLong(amount);
+            out.writeByte(splitType == null ? -1 : splitType.ordinal());
+            out.writeUTF(paidByUserId);
+            out.writeInt(splitUserIds.length);
+            for(int i = 0; i < splitUserIds.length; i++) {
+                out.writeUTF(splitUserIds[i]);
+                out.writeLong(splitAmounts[i]);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static JournalEntry decode(byte type, long sequence, DataInputStream in) throws IOException {
+        JournalEntry entry = new JournalEntry();
+        entry.type = type;
+        entry.sequence = sequence;
+        entry.groupId = emptyToNull(in.readUTF());
+        entry.expenseId = emptyToNull(in.readUTF());
+        entry.description = in.readUTF();
+        entry.amount = in.readLong();
+        byte splitType = in.readByte();
+        entry.splitType = splitType < 0 ? null : ExpenseSplitType.values()[splitType];
+        entry.paidByUserId = in.readUTF();
+        int splitCount = in.readInt();
+        entry.splitUserIds = new String[splitCount];
+        entry.splitAmounts = new long[splitCount];
+        for(int i = 0; i < splitCount; i++) {
+            entry.splitUserIds[i] = in.readUTF();
+            entry.splitAmounts[i] = in.readLong();
+        }
+        return entry;
+    }
+
+    private static String emptyToNull(String value){ return value.isEmpty() ? null : value; }
+}
+
+// Append-only binary journal with group commit: posting threads enqueue encoded records and wait
+// until durable, while one writer thread drains everything queued, writes it in a single call and
+// fsyncs once per batch. Sequence numbers are assigned on enqueue, in queue order, so a caller can
+// enqueue under its locks and wait for the fsync after releasing them.
+// Record layout: [int length][int crc32][byte type][long sequence][body].
+class ExpenseJournal implements Closeable {
+    static final int MAX_BATCH = 1024;
+    private static final int FRAME_HEADER = 4 + 4;
+    private static final int RECORD_HEADER = 1 + 8;
+    private static final PendingAppend CLOSE = new PendingAppend((byte) 0, 0, new byte[0]);
+
+    private final FileChannel channel;
+    private final LinkedBlockingQueue<PendingAppend> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile long lastSequence;
+    private volatile long position;
+    private volatile IOException failure;
+    private long enqueuedSequence; // guarded by this
+
+    // a record to write, or (null body) a mark that only reports the position reached before it
+    private static class PendingAppend {
+        final byte type;
+        final long sequence;
+        final byte[] body;
+        final CompletableFuture<JournalPosition> durable = new CompletableFuture<>();
+
+        PendingAppend(byte type, long sequence, byte[] body){
+            this.type = type;
+            this.sequence = sequence;
+            this.body = body;
+        }
+    }
+
+    private ExpenseJournal(FileChannel channel, long lastSequence, long position){
+        this.channel = channel;
+        this.lastSequence = lastSequence;
+        this.enqueuedSequence = lastSequence;
+        this.position = position;
+        this.writer = new Thread(this::writeLoop, "expense-journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // Reads the journal from the snapshot's position (the start when there is none) and hands every
+    // record after it to handler; nothing before it is read again. Cuts off a torn tail left by a
+    // crash and returns a journal ready to append after the last intact record.
+    static ExpenseJournal open(Path journalFile, JournalPosition from, Consumer<JournalEntry> handler) throws IOException {
+        FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long lastSequence = from.getSequence();
+        long position = from.getOffset();
+        if(channel.size() < position) {
+            channel.close();
+            throw new IOException("Journal " + journalFile + " ends before the snapshot position " + position);
+        }
+        channel.position(position);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        CRC32 crc = new CRC32();
+        while (true) {
+            byte[] record;
+            int expectedCrc;
+            try {
+                int length = in.readInt();
+                expectedCrc = in.readInt();
+                if(length < RECORD_HEADER || length > channel.size() - position - FRAME_HEADER) break;
+                record = new byte[length];
+                in.readFully(record);
+            } catch (EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(record);
+            if((int) crc.getValue() != expectedCrc) break;
+            DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+            byte type = recordIn.readByte();
+            long sequence = recordIn.readLong();
+            if(sequence > lastSequence) {
+                handler.accept(JournalEntry.decode(type, sequence, recordIn));
+                lastSequence = sequence;
+            }
+            position += FRAME_HEADER + record.length;
+        }
+        channel.truncate(position);
+        channel.position(position);
+        return new ExpenseJournal(channel, lastSequence, position);
+    }
+
+    // queues the entry behind everything enqueued before it and returns without waiting; the future
+    // completes with the position just after the record once it is durable
+    CompletableFuture<JournalPosition> enqueue(JournalEntry entry){
+        byte[] body = entry.encodeBody();
+        synchronized (this) {
+            checkAvailable();
+            PendingAppend append = new PendingAppend(entry.type, ++enqueuedSequence, body);
+            entry.sequence = append.sequence;
+            pending.add(append);
+            return append.durable;
+        }
+    }
+
+    // enqueues the entries back to back, so a batch shares group commits; completes once all are durable
+    CompletableFuture<Void> enqueueAll(List<JournalEntry> entries){
+        List<byte[]> bodies = new ArrayList<>(entries.size());
+        for(JournalEntry entry : entries) bodies.add(entry.encodeBody());
+        CompletableFuture<?>[] durable = new CompletableFuture<?>[entries.size()];
+        synchronized (this) {
+            checkAvailable();
+            for(int i = 0; i < entries.size(); i++) {
+                JournalEntry entry = entries.get(i);
+                PendingAppend append = new PendingAppend(entry.type, ++enqueuedSequence, bodies.get(i));
+                entry.sequence = append.sequence;
+                pending.add(append);
+                durable[i] = append.durable;
+            }
+        }
+        return CompletableFuture.allOf(durable);
+    }
+
+    // completes with the position just after every entry enqueued before the mark, once they are durable
+    synchronized CompletableFuture<JournalPosition> mark(){
+        checkAvailable();
+        PendingAppend mark = new PendingAppend((byte) 0, enqueuedSequence, null);
+        pending.add(mark);
+        return mark.durable;
+    }
+
+    private void checkAvailable(){
+        if(failure != null) throw new UncheckedIOException("Journal unavailable", failure);
+    }
+
+    @Override
+    public void close() throws IOException {
+        pending.add(CLOSE);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void writeLoop(){
+        List<PendingAppend> batch = new ArrayList<>(MAX_BATCH);
+        CRC32 crc = new CRC32();
+        boolean closing = false;
+        while (!closing) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch, MAX_BATCH - 1);
+            closing = batch.remove(CLOSE);
+            if(batch.isEmpty()) continue;
+
+            long sequence = lastSequence;
+            int size = 0;
+            for(PendingAppend append : batch) {
+                if(append.body != null) size += FRAME_HEADER + RECORD_HEADER + append.body.length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            JournalPosition[] reached = new JournalPosition[batch.size()];
+            for(int i = 0; i < batch.size(); i++) {
+                PendingAppend append = batch.get(i);
+                if(append.body != null) {
+                    int recordStart = buffer.position() + FRAME_HEADER;
+                    buffer.putInt(RECORD_HEADER + append.body.length);
+                    buffer.putInt(0); // crc, patched below
+                    buffer.put(append.type);
+                    buffer.putLong(append.sequence);
+                    buffer.put(append.body);
+                    crc.reset();
+                    crc.update(buffer.array(), recordStart, RECORD_HEADER + append.body.length);
+                    buffer.putInt(recordStart - 4, (int) crc.getValue());
+                    sequence = append.sequence;
+                }
+                reached[i] = new JournalPosition(append.sequence, position + buffer.position());
+            }
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(false);
+            } catch (IOException e) {
+                failure = e;
+                for(PendingAppend append : batch) append.durable.completeExceptionally(e);
+                batch.clear();
+                continue;
+            }
+            position += size;
+            lastSequence = sequence;
+            for(int i = 0; i < batch.size(); i++) batch.get(i).durable.complete(reached[i]);
+            batch.clear();
+        }
     }
 }
 
@@ -326,6 +1687,7 @@ class Splitwise {
     UserController userController;
     GroupController groupController;
     BalanceSheetController balanceSheetController;
+    ExpenseJournal expenseJournal;
 
     Splitwise(){
         userController = new UserController();
@@ -333,6 +1695,60 @@ class Splitwise {
         balanceSheetController = BalanceSheetController.getInstance();
     }
 
+    // Startup recovery: load the latest snapshot (balances and group expenses), if any, replay only
+    // the journal records written after it, then journal every new expense. Users and groups are
+    // registered beforehand.
+    public void recover(Path snapshotFile, Path journalFile) throws IOException {
+        JournalPosition from = Files.exists(snapshotFile)
+                ? balanceSheetController.loadSnapshot(snapshotFile, userController, groupController)
+                : new JournalPosition(0, 0);
+        expenseJournal = ExpenseJournal.open(journalFile, from, this::applyJournalEntry);
+        balanceSheetController.setJournal(expenseJournal);
+    }
+
+    // periodic checkpoint; bounds how much journal the next recovery has to replay
+    public void snapshot(Path snapshotFile) throws IOException {
+        balanceSheetController.writeSnapshot(snapshotFile, userController.getAllUsers(), groupController.getAllGroups());
+    }
+
+    // settle payment between users: payer pays payee towards what payer owes overall
+    public void settle(String payerId, String payeeId, long amount){
+        balanceSheetController.settle(userController.getUser(payerId), userController.getUser(payeeId), amount);
+    }
+
+    // settles within a group (see Group.settle), e.g. one transfer of the group's planSettlement()
+    public void settle(String groupId, String payerId, String payeeId, long amount){
+        groupController.getGroup(groupId).settle(userController.getUser(payerId), userController.getUser(payeeId), amount);
+    }
+
+    // deletes an expense of a group, reversing its effect on every balance sheet
+    public Expense deleteExpense(String groupId, String expenseId){
+        Group group = groupController.getGroup(groupId);
+        return group == null ? null : group.deleteExpense(expenseId);
+    }
+
+    private void applyJournalEntry(JournalEntry entry){
+        List<Split> splits = splitsOf(entry);
+        User paidBy = userController.getUser(entry.paidByUserId);
+        Group group = entry.groupId == null ? null : groupController.getGroup(entry.groupId);
+        balanceSheetController.replay(entry, group, paidBy, splits);
+        if(group == null) return;
+        // keyed by expense id, so a change the snapshot already holds is simply made again
+        if(entry.type == JournalEntry.EXPENSE) {
+            group.expenseIndex.put(entry.expenseId, new Expense(entry.expenseId, entry.amount, entry.description, paidBy, entry.splitType, splits));
+        } else if(entry.type == JournalEntry.EXPENSE_DELETION) {
+            group.expenseIndex.remove(entry.expenseId);
+        }
+    }
+
+    private List<Split> splitsOf(JournalEntry entry){
+        List<Split> splits = new ArrayList<>();
+        for(int i = 0; i < entry.splitUserIds.length; i++) {
+            splits.add(new Split(userController.getUser(entry.splitUserIds[i]), entry.splitAmounts[i]));
+        }
+        return splits;
+    }
+
     public void demo(){
         setupUserAndGroup();
 
@@ -343,27 +1759,34 @@ class Splitwise {
 
         // create an expense inside a group (equal split)
         List<Split> splits = new ArrayList<>();
-        splits.add(new Split(userController.getUser("U1001"), 300));
-        splits.add(new Split(userController.getUser("U2001"), 300));
-        splits.add(new Split(userController.getUser("U3001"), 300));
-        group.createExpense("Exp1001", "Breakfast", 900, splits, ExpenseSplitType.EQUAL, userController.getUser("U1001"));
+        splits.add(new Split(userController.getUser("U1001"), Money.ofMajor(300)));
+        splits.add(new Split(userController.getUser("U2001"), Money.ofMajor(300)));
+        splits.add(new Split(userController.getUser("U3001"), Money.ofMajor(300)));
+        group.createExpense("Exp1001", "Breakfast", Money.ofMajor(900), splits, ExpenseSplitType.EQUAL, userController.getUser("U1001"));
 
         // create unequal expense
         List<Split> splits2 = new ArrayList<>();
-        splits2.add(new Split(userController.getUser("U1001"), 400));
-        splits2.add(new Split(userController.getUser("U2001"), 100));
-        group.createExpense("Exp1002", "Lunch", 500, splits2, ExpenseSplitType.UNEQUAL, userController.getUser("U2001"));
+        splits2.add(new Split(userController.getUser("U1001"), Money.ofMajor(400)));
+        splits2.add(new Split(userController.getUser("U2001"), Money.ofMajor(100)));
+        group.createExpense("Exp1002", "Lunch", Money.ofMajor(500), splits2, ExpenseSplitType.UNEQUAL, userController.getUser("U2001"));
 
-        // create percentage expense (percent values provided)
+        // create percentage expense (percent values provided in basis points)
         List<Split> percentSplits = new ArrayList<>();
-        percentSplits.add(new Split(userController.getUser("U1001"), 50)); // 50%
-        percentSplits.add(new Split(userController.getUser("U2001"), 50)); // 50%
-        group.createExpense("Exp1003", "Taxi", 200, percentSplits, ExpenseSplitType.PERCENTAGE, userController.getUser("U1001"));
+        percentSplits.add(new Split(userController.getUser("U1001"), 5000)); // 50%
+        percentSplits.add(new Split(userController.getUser("U2001"), 5000)); // 50%
+        group.createExpense("Exp1003", "Taxi", Money.ofMajor(200), percentSplits, ExpenseSplitType.PERCENTAGE, userController.getUser("U1001"));
 
         // Show balances
         for(User user : userController.getAllUsers()) {
             balanceSheetController.showBalanceSheetOfUser(user);
         }
+
+        // Settle up the group with the fewest transfers
+        for(Transfer transfer : group.planSettlement()) {
+            System.out.println(transfer.getFrom().getUserId() + " pays " + transfer.getTo().getUserId() + " " + Money.format(transfer.getAmount()));
+            settle(group.getGroupId(), transfer.getFrom().getUserId(), transfer.getTo().getUserId(), transfer.getAmount());
+            balanceSheetController.showBalanceSheetOfUser(transfer.getFrom());
+        }
     }
 
     public void setupUserAndGroup(){
@@ -376,9 +1799,7 @@ class Splitwise {
         User user1 = new User("U1001", "User1");
         User user2 = new User ("U2001", "User2");
         User user3 = new User ("U3001", "User3");
-        userController.addUser(user1);
-        userController.addUser(user2);
-        userController.addUser(user3);
+        userController.addUsers(Arrays.asList(user1, user2, user3));
     }
 }
 
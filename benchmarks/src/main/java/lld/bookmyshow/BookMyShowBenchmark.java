@@ -0,0 +1,244 @@
+package lld.bookmyshow;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+ JMH benchmarks for BookMyShow catalogue lookups and seat claim contention.
+ The benchmarks module packages Book-My-Show.java into lld.bookmyshow at build time (Java 21):
+     cd benchmarks && mvn -B package
+     java -jar target/benchmarks.jar BookMyShowBenchmark -rf json
+ Record the json before and after any change to the seat model; the claim results also report
+ how many holds succeeded ("held") against lost races ("rejected").
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BookMyShowBenchmark {
+
+    // ------------------------
+    // Synthetic catalogue
+    // ------------------------
+    // theatres x screens x shows, spread over the cities; movies play in every city and shows
+    // pick them round robin. Returns every show created.
+    static List<Show> createCatalogue(BookMyShow app, int theatres, int screensPerTheatre, int showsPerScreen, int movies) {
+        City[] cities = City.values();
+        List<Movie> movieList = new ArrayList<>(movies);
+        for (int m = 0; m < movies; m++) {
+            Movie movie = new Movie();
+            movie.setMovieId(m + 1);
+            movie.setMovieName(movieName(m));
+            movie.setMovieDuration(90 + m % 90);
+            for (City city : cities) app.movieController.addMovie(movie, city);
+            movieList.add(movie);
+        }
+        app.movieController.publish();
+
+        List<Show> allShows = new ArrayList<>();
+        int showId = 0;
+        for (int t = 0; t < theatres; t++) {
+            Theatre theatre = new Theatre();
+            theatre.setTheatreId(t + 1);
+            theatre.setCity(cities[t % cities.length]);
+            List<Screen> screens = new ArrayList<>(screensPerTheatre);
+            List<Show> shows = new ArrayList<>(screensPerTheatre * showsPerScreen);
+            for (int s = 0; s < screensPerTheatre; s++) {
+                Screen screen = new Screen();
+                screen.setScreenId(s + 1);
+                screen.setSeatLayout(BookMyShow.STANDARD_SEAT_LAYOUT);
+                screens.add(screen);
+                for (int slot = 0; slot < showsPerScreen; slot++) {
+                    Show show = new Show();
+                    show.setShowId(++showId);
+                    show.setScreen(screen);
+                    show.setMovie(movieList.get(showId % movies));
+                    show.setShowStartTime(9 + slot * 3);
+                    shows.add(show);
+                }
+            }
+            theatre.setScreen(screens);
+            theatre.setShows(shows);
+            app.theatreController.addTheatre(theatre, theatre.getCity());
+            allShows.addAll(shows);
+        }
+        app.theatreController.publish();
+        return allShows;
+    }
+
+    static String movieName(int m) {
+        return "MOVIE " + m;
+    }
+
+    // ------------------------
+    // Catalogue search: TheatreController.getAllShow, MovieController.getMovieByName/getMoviesByCity
+    // ------------------------
+    @State(Scope.Benchmark)
+    public static class CatalogueState {
+        @Param({"10", "100", "1000"})
+        public int theatres;
+
+        @Param({"4"})
+        public int screensPerTheatre;
+
+        @Param({"4"})
+        public int showsPerScreen;
+
+        @Param({"200"})
+        public int movies;
+
+        BookMyShow app;
+        List<Movie> movieList;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            app = new BookMyShow();
+            createCatalogue(app, theatres, screensPerTheatre, showsPerScreen, movies);
+            movieList = new ArrayList<>();
+            for (int m = 0; m < movies; m++) movieList.add(app.movieController.getMovieByName(movieName(m)));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            app.shutdown();
+        }
+
+        City randomCity() {
+            City[] cities = City.values();
+            return cities[ThreadLocalRandom.current().nextInt(cities.length)];
+        }
+
+        int randomMovie() {
+            return ThreadLocalRandom.current().nextInt(movies);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Map<Theatre, List<Show>> getAllShow(CatalogueState state) {
+        return state.app.theatreController.getAllShow(state.movieList.get(state.randomMovie()), state.randomCity());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Movie getMovieByName(CatalogueState state) {
+        return state.app.movieController.getMovieByName(movieName(state.randomMovie()));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Movie getMovieByNameInCity(CatalogueState state) {
+        return state.app.movieController.getMovieByName(movieName(state.randomMovie()), state.randomCity());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<Movie> getMoviesByCity(CatalogueState state) {
+        return state.app.movieController.getMoviesByCity(state.randomCity());
+    }
+
+    // ------------------------
+    // Seat claims: the hold step of BookMyShow.createBooking under 1..512 bookers
+    // ------------------------
+    // Each operation holds two adjacent seats through the booking engine, schedules the hold on the
+    // app's timing wheel as createBooking does and, if it won them, cancels the hold again. Shows therefore never sell out and every iteration measures the same
+    // contention. target=same puts every booker on one show; target=spread picks a random show of
+    // the catalogue per booking.
+    @State(Scope.Benchmark)
+    public static class BookingState {
+        @Param({"same", "spread"})
+        public String target;
+
+        @Param({"shared", "partitioned"})
+        public String engine;
+
+        @Param({"100"})
+        public int theatres;
+
+        BookMyShow app;
+        PartitionedBookingEngine partitionedEngine;
+        Show[] shows;
+        int[][] seatPairs;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            if (engine.equals("partitioned")) {
+                partitionedEngine = new PartitionedBookingEngine(Runtime.getRuntime().availableProcessors(), 1024);
+            }
+            SeatBookingEngine bookingEngine = partitionedEngine != null
+                    ? partitionedEngine
+                    : SharedStateBookingEngine.getInstance();
+            app = new BookMyShow(bookingEngine);
+            List<Show> allShows = createCatalogue(app, theatres, 4, 4, 50);
+            shows = target.equals("same") ? new Show[]{allShows.get(0)} : allShows.toArray(new Show[0]);
+
+            SeatLayout layout = BookMyShow.STANDARD_SEAT_LAYOUT;
+            List<int[]> pairs = new ArrayList<>();
+            for (int seatId = 0; seatId + 1 < layout.getSeatCount(); seatId++) {
+                if (layout.getRow(seatId) == layout.getRow(seatId + 1)) pairs.add(new int[]{seatId, seatId + 1});
+            }
+            seatPairs = pairs.toArray(new int[0][]);
+        }
+
+        // each trial builds its own app and engine; stop their threads so trials do not pile up
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            app.shutdown();
+            if (partitionedEngine != null) partitionedEngine.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class BookerState {
+        public long held;
+        public long rejected;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            held = 0;
+            rejected = 0;
+        }
+    }
+
+    private static void claimAndRelease(BookingState state, BookerState booker) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Show show = state.shows[random.nextInt(state.shows.length)];
+        SeatHold hold = state.app.bookingEngine.holdSeats(show, state.seatPairs[random.nextInt(state.seatPairs.length)]);
+        if (hold == null) {
+            booker.rejected++;
+            return;
+        }
+        booker.held++;
+        state.app.seatHoldTimer.schedule(hold, BookMyShow.SEAT_HOLD_TTL_MINUTES, TimeUnit.MINUTES);
+        hold.cancel();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void claimSeats1Booker(BookingState state, BookerState booker) {
+        claimAndRelease(state, booker);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void claimSeats8Bookers(BookingState state, BookerState booker) {
+        claimAndRelease(state, booker);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void claimSeats64Bookers(BookingState state, BookerState booker) {
+        claimAndRelease(state, booker);
+    }
+
+    @Benchmark
+    @Threads(512)
+    public void claimSeats512Bookers(BookingState state, BookerState booker) {
+        claimAndRelease(state, booker);
+    }
+}
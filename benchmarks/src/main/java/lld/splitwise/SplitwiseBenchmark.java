@@ -0,0 +1,308 @@
+package lld.splitwise;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+ JMH benchmarks for Splitwise expense posting, user lookup, balance reads and settle-up planning.
+ The benchmarks module packages Splitwise.java into lld.splitwise at build time:
+     cd benchmarks && mvn -B package
+     java -jar target/benchmarks.jar SplitwiseBenchmark -rf json
+ Compare the json of the baseline build and the candidate build before rolling out.
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SplitwiseBenchmark {
+
+    // ------------------------
+    // Synthetic data
+    // ------------------------
+    // users are created once per prefix; ids are interned process wide, so reuse them across trials
+    static List<User> createUsers(String prefix, int count){
+        List<User> users = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) users.add(new User(prefix + i, "User " + i));
+        return users;
+    }
+
+    // EQUAL and UNEQUAL carry minor units, PERCENTAGE carries basis points (see ExpenseController)
+    static List<Split> createSplits(List<User> members, ExpenseSplitType splitType, long amount){
+        List<Split> splits = new ArrayList<>(members.size());
+        long[] shares = splitType == ExpenseSplitType.PERCENTAGE
+                ? Money.allocateEqually(Money.BASIS_POINTS_PER_WHOLE, members.size())
+                : Money.allocateEqually(amount, members.size());
+        for(int i = 0; i < members.size(); i++) splits.add(new Split(members.get(i), shares[i]));
+        return splits;
+    }
+
+    // ------------------------
+    // ExpenseController.createExpense per split type
+    // ------------------------
+    @State(Scope.Thread)
+    public static class ExpenseState {
+        // a name rather than the enum: the generated harness lives in another package and the
+        // design's types are package-private
+        @Param({"EQUAL", "UNEQUAL", "PERCENTAGE"})
+        public String splitTypeName;
+
+        @Param({"4", "12", "50"})
+        public int groupSize;
+
+        ExpenseSplitType splitType;
+        ExpenseController expenseController;
+        List<User> members;
+        long expenseSequence;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            splitType = ExpenseSplitType.valueOf(splitTypeName);
+            expenseController = new ExpenseController();
+            members = createUsers("EXP-" + Thread.currentThread().getId() + "-" + groupSize + "-", groupSize);
+        }
+    }
+
+    @Benchmark
+    public Expense createExpense(ExpenseState state){
+        long amount = Money.ofMajor(1 + ThreadLocalRandom.current().nextInt(5_000));
+        // splits are rebuilt every call: validation rewrites EQUAL/PERCENTAGE shares in place
+        List<Split> splits = createSplits(state.members, state.splitType, amount);
+        return state.expenseController.createExpense("E" + state.expenseSequence++, "Dinner", amount,
+                splits, state.splitType, state.members.get(0));
+    }
+
+    // ------------------------
+    // Bulk import: one createExpenses batch against the same expenses one by one
+    // ------------------------
+    @State(Scope.Thread)
+    public static class ImportState {
+        @Param({"1000"})
+        public int batchSize;
+
+        List<User> members;
+        List<Expense> batch;
+        int round;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            members = createUsers("IMP-" + Thread.currentThread().getId() + "-", 40);
+        }
+
+        @Setup(Level.Invocation)
+        public void createBatch(){
+            Random random = new Random(round);
+            batch = new ArrayList<>(batchSize);
+            for(int i = 0; i < batchSize; i++) {
+                int from = random.nextInt(members.size() - 4);
+                long amount = Money.ofMajor(1 + random.nextInt(1_000));
+                List<Split> splits = createSplits(members.subList(from, from + 4), ExpenseSplitType.EQUAL, amount);
+                batch.add(new Expense("R" + round + "-" + i, amount, "Import", members.get(random.nextInt(members.size())), ExpenseSplitType.EQUAL, splits));
+            }
+            round++;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public void importOneByOne(ImportState state){
+        ExpenseController expenseController = new ExpenseController();
+        for(Expense expense : state.batch) {
+            expenseController.createExpense(expense.getExpenseId(), expense.getDescription(), expense.getExpenseAmount(),
+                    expense.getSplitDetails(), expense.getSplitType(), expense.getPaidByUser());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public List<Expense> importBatch(ImportState state){
+        return new ExpenseController().createExpenses(null, state.batch);
+    }
+
+    // ------------------------
+    // BalanceSheetController.recordExpense under 1..N threads
+    // ------------------------
+    // The production posting path: stripe locks plus, with journaled=true, a group-committed
+    // journal append on a temporary file. sharedGroup=true: every thread posts to the same group
+    // (stripe contention); false: each thread has its own group, which is what a busy service
+    // mostly sees
+    @State(Scope.Benchmark)
+    public static class PostingState {
+        @Param({"true", "false"})
+        public boolean sharedGroup;
+
+        @Param({"true", "false"})
+        public boolean journaled;
+
+        @Param({"6"})
+        public int groupSize;
+
+        List<User> sharedMembers;
+        Path journalFile;
+        ExpenseJournal journal;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            sharedMembers = createUsers("POST-SHARED-" + groupSize + "-", groupSize);
+            if(journaled) {
+                journalFile = Files.createTempFile("splitwise-bench", ".journal");
+                journal = ExpenseJournal.open(journalFile, new JournalPosition(0, 0), entry -> {});
+                BalanceSheetController.getInstance().setJournal(journal);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            if(journal == null) return;
+            BalanceSheetController.getInstance().setJournal(null);
+            journal.close();
+            Files.deleteIfExists(journalFile);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PostingThreadState {
+        Expense expense;
+
+        @Setup(Level.Trial)
+        public void setUp(PostingState shared){
+            List<User> members = shared.sharedGroup
+                    ? shared.sharedMembers
+                    : createUsers("POST-" + Thread.currentThread().getId() + "-" + shared.groupSize + "-", shared.groupSize);
+            long amount = Money.ofMajor(600);
+            expense = new Expense("POST", amount, "Dinner", members.get(0), ExpenseSplitType.EQUAL,
+                    createSplits(members, ExpenseSplitType.EQUAL, amount));
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void postBalances1Thread(PostingThreadState state){
+        BalanceSheetController.getInstance().recordExpense(null, state.expense);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void postBalances4Threads(PostingThreadState state){
+        BalanceSheetController.getInstance().recordExpense(null, state.expense);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void postBalances16Threads(PostingThreadState state){
+        BalanceSheetController.getInstance().recordExpense(null, state.expense);
+    }
+
+    // ------------------------
+    // UserController.getUser at varying user counts
+    // ------------------------
+    @State(Scope.Benchmark)
+    public static class UserLookupState {
+        @Param({"1000", "100000", "1000000"})
+        public int userCount;
+
+        UserController userController;
+        String[] lookupIds;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            userController = new UserController(userCount);
+            userController.addUsers(createUsers("LOOKUP-", userCount));
+            Random random = new Random(42);
+            lookupIds = new String[4096];
+            for(int i = 0; i < lookupIds.length; i++) lookupIds[i] = "LOOKUP-" + random.nextInt(userCount);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public User getUser(UserLookupState state){
+        return state.userController.getUser(state.lookupIds[ThreadLocalRandom.current().nextInt(state.lookupIds.length)]);
+    }
+
+    // ------------------------
+    // Balance sheet reads for a power user with many counterparties
+    // ------------------------
+    @State(Scope.Benchmark)
+    public static class BalanceReadState {
+        @Param({"10", "1000", "10000"})
+        public int counterparties;
+
+        User powerUser;
+        int[] counterpartyIndexes;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            List<User> users = createUsers("READ-" + counterparties + "-", counterparties + 1);
+            powerUser = users.get(0);
+            counterpartyIndexes = new int[counterparties];
+            for(int i = 1; i <= counterparties; i++) {
+                User friend = users.get(i);
+                List<Split> splits = Arrays.asList(new Split(powerUser, Money.ofMajor(50)), new Split(friend, Money.ofMajor(50)));
+                BalanceSheetController.getInstance().updateUserExpenseBalanceSheet(i % 2 == 0 ? powerUser : friend, splits, Money.ofMajor(100));
+                counterpartyIndexes[i - 1] = friend.getUserIndex();
+            }
+        }
+    }
+
+    // what the power user owes one counterparty, net
+    @Benchmark
+    @Threads(4)
+    public long readBalanceWithCounterparty(BalanceReadState state){
+        BalanceMap balances = state.powerUser.getUserExpenseBalanceSheet().getBalances();
+        int counterparty = state.counterpartyIndexes[ThreadLocalRandom.current().nextInt(state.counterpartyIndexes.length)];
+        return balances.getOwe(counterparty) - balances.getGetBack(counterparty);
+    }
+
+    // walks the whole sheet, as rendering a user's balance page does
+    @Benchmark
+    public long readWholeBalanceSheet(BalanceReadState state){
+        long[] net = new long[1];
+        state.powerUser.getUserExpenseBalanceSheet().getBalances()
+                .forEach((userIndex, amountOwe, amountGetBack) -> net[0] += amountGetBack - amountOwe);
+        return net[0];
+    }
+
+    // ------------------------
+    // SettlementPlanner: exact search for small groups, greedy beyond EXACT_SEARCH_LIMIT
+    // ------------------------
+    @State(Scope.Benchmark)
+    public static class SettlementState {
+        @Param({"8", "16", "200", "10000"})
+        public int members;
+
+        Group group;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            List<User> users = createUsers("PLAN-" + members + "-", members);
+            GroupController groupController = new GroupController();
+            groupController.createNewGroup("PLAN-" + members, "Trip", users.get(0));
+            group = groupController.getGroup("PLAN-" + members);
+            for(int i = 1; i < members; i++) group.addMember(users.get(i));
+            Random random = new Random(7);
+            List<Expense> expenses = new ArrayList<>();
+            for(int i = 0; i < members * 2; i++) {
+                int from = random.nextInt(members - 2);
+                long amount = Money.ofMajor(1 + random.nextInt(2_000));
+                List<Split> splits = createSplits(users.subList(from, from + 3), ExpenseSplitType.UNEQUAL, amount);
+                expenses.add(new Expense("P" + i, amount, "Trip", users.get(random.nextInt(members)), ExpenseSplitType.UNEQUAL, splits));
+            }
+            group.createExpenses(expenses);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void planSettlement(SettlementState state, Blackhole blackhole){
+        blackhole.consume(state.group.planSettlement());
+    }
+}